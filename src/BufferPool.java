@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-classed pool of direct {@link ByteBuffer}s used as staging space when encoding and
+ * decoding message payloads. Buffers are handed out as reference counted {@link PooledBuffer}s and
+ * return to the pool when their count drops to zero. Large payload staging therefore reuses the
+ * same off-heap memory across commits instead of allocating fresh multi-megabyte arrays that the
+ * garbage collector has to promote and sweep.
+ *
+ * The free buffers of all classes together never exceed a byte budget, -DbufferPoolBytes, so a
+ * burst of large payloads cannot leave hundreds of megabytes of idle off-heap memory behind. A
+ * buffer returned while the pool is full is dropped and reclaimed with its handle.
+ */
+public class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 16; // 64 KiB
+    private static final int MAX_CLASS_SHIFT = 26; // 64 MiB
+    private static final long MAX_RETAINED = Long.getLong("bufferPoolBytes", 128L * 1024 * 1024); // bytes
+
+    private static final AtomicLong retained = new AtomicLong(); // bytes of free buffers held by all classes
+
+    private static final SizeClass[] classes = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+    static {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass();
+        }
+    }
+
+    /**
+     * Acquires a cleared buffer with at least the requested capacity. The caller owns one reference
+     * and must release it when done.
+     *
+     * @param capacity The minimum capacity in bytes.
+     * @return A pooled buffer whose limit is set to the requested capacity.
+     */
+    public static PooledBuffer acquire(int capacity) {
+        int index = classIndex(capacity);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            buffer = classes[index].buffers.poll();
+            if (buffer != null) {
+                retained.addAndGet(-buffer.capacity());
+            } else {
+                buffer = ByteBuffer.allocateDirect(1 << (index + MIN_CLASS_SHIFT));
+            }
+        } else {
+            buffer = ByteBuffer.allocateDirect(capacity); // too large to pool
+        }
+        buffer.clear().limit(capacity);
+        return new PooledBuffer(buffer);
+    }
+
+    /**
+     * Returns a buffer to its size class, or drops it if it is unpooled or the pool already
+     * retains its byte budget.
+     * Called by {@link PooledBuffer} once the last reference is released.
+     *
+     * @param buffer The buffer to return.
+     */
+    static void recycle(ByteBuffer buffer) {
+        int index = classIndex(buffer.capacity());
+        if (index < 0 || buffer.capacity() != 1 << (index + MIN_CLASS_SHIFT)) {
+            return;
+        }
+        if (retained.addAndGet(buffer.capacity()) <= MAX_RETAINED) {
+            classes[index].buffers.offer(buffer);
+        } else {
+            retained.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * Maps a capacity to the smallest size class that can hold it.
+     *
+     * @param capacity The capacity in bytes.
+     * @return The size class index, or -1 if the capacity is larger than the largest class.
+     */
+    private static int classIndex(int capacity) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1));
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * The free buffers of one size class.
+     */
+    private static class SizeClass {
+
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Records the traffic of a process so that it can be replayed later by {@link Replay}. Capture is
+ * off unless the process runs with -Dcapture=true, in which case every message sent and received
+ * is appended to ./capture.bin with its time, peer, size and a CRC32 of its body, and the
+ * coordinator also records every submitted commit and its outcome.
+ *
+ * The file is a sequence of binary records, each starting with its kind and its time in
+ * milliseconds since the epoch, so the files of all processes share one timeline. A process
+ * appends a START record whenever it starts, so a START after the first one marks a restart after
+ * a crash. Dropped messages are not recorded as such, since neither side sees a drop; they are the
+ * sends that no receive in the peer's file matches.
+ */
+public class Capture {
+
+    public static final boolean ENABLED = Boolean.getBoolean("capture");
+    public static final String FILE_NAME = "capture.bin";
+
+    public static final byte START = 0;
+    public static final byte SEND = 1;
+    public static final byte RECEIVE = 2;
+    public static final byte SUBMIT = 3;
+    public static final byte OUTCOME = 4;
+
+    private static DataOutputStream out;
+
+    /**
+     * Opens the capture file and records the start of this process. Does nothing unless capture
+     * is on.
+     *
+     * @param process The name of this process, such as "Server" or a node ID.
+     */
+    public static synchronized void init(String process) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FILE_NAME, true)));
+        } catch (IOException e) {
+            System.out.println("Error opening capture file: " + e.getMessage());
+            return;
+        }
+        record(START, process);
+    }
+
+    /**
+     * Records a message sent by this process.
+     *
+     * @param peer The destination.
+     * @param body The message body.
+     */
+    public static void sent(String peer, byte[] body) {
+        if (ENABLED) {
+            record(SEND, peer, body.length, crc(body));
+        }
+    }
+
+    /**
+     * Records a message received by this process.
+     *
+     * @param peer The sender.
+     * @param body The message body.
+     */
+    public static void received(String peer, byte[] body) {
+        if (ENABLED) {
+            record(RECEIVE, peer, body.length, crc(body));
+        }
+    }
+
+    /**
+     * Records a commit submitted to the coordinator.
+     *
+     * @param id        The transaction ID.
+     * @param filename  The composite, or the composites of a batch separated by ';'.
+     * @param imageSize The total size of the images.
+     * @param sources   The sources, as "node:file" strings.
+     */
+    public static void submitted(String id, String filename, int imageSize, List<String> sources) {
+        if (ENABLED) {
+            List<Object> fields = new ArrayList<>(List.of(id, filename, imageSize, sources.size()));
+            fields.addAll(sources);
+            record(SUBMIT, fields.toArray());
+        }
+    }
+
+    /**
+     * Records the outcome of a submitted commit.
+     *
+     * @param result The outcome and timing.
+     */
+    public static void decided(CommitTracker.Result result) {
+        if (ENABLED) {
+            record(OUTCOME, result.getID(), result.getOutcome().name(), (int) result.getLatency());
+        }
+    }
+
+    private static synchronized void record(byte kind, Object... fields) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(kind);
+            out.writeLong(System.currentTimeMillis());
+            for (Object field : fields) {
+                if (field instanceof Integer) {
+                    out.writeInt((Integer) field);
+                } else {
+                    out.writeUTF((String) field);
+                }
+            }
+            out.flush(); // keep the records of a process that is about to crash
+        } catch (IOException e) {
+            System.out.println("Error writing capture: " + e.getMessage());
+        }
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads a capture file. A record cut short by a crash ends the file.
+     *
+     * @param file The capture file.
+     * @return The records, in the order they were written.
+     * @throws IOException If the file cannot be read.
+     */
+    public static List<Record> read(File file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte kind;
+                try {
+                    kind = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    records.add(readRecord(kind, in));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return records;
+    }
+
+    private static Record readRecord(byte kind, DataInputStream in) throws IOException {
+        Record r = new Record(kind, in.readLong());
+        switch (kind) {
+            case START:
+                r.peer = in.readUTF();
+                break;
+            case SEND:
+            case RECEIVE:
+                r.peer = in.readUTF();
+                r.size = in.readInt();
+                r.crc = in.readInt();
+                break;
+            case SUBMIT:
+                r.id = in.readUTF();
+                r.filename = in.readUTF();
+                r.size = in.readInt();
+                r.sources = new String[in.readInt()];
+                for (int i = 0; i < r.sources.length; i++) {
+                    r.sources[i] = in.readUTF();
+                }
+                break;
+            case OUTCOME:
+                r.id = in.readUTF();
+                r.outcome = in.readUTF();
+                r.latency = in.readInt();
+                break;
+            default:
+                throw new IOException("Unknown capture record kind " + kind);
+        }
+        return r;
+    }
+
+    /**
+     * One captured record. Only the fields of its kind are set.
+     */
+    public static class Record {
+
+        public final byte kind;
+        public final long time;
+        public String peer;     // START: the process; SEND, RECEIVE: the other side
+        public int size;        // SEND, RECEIVE: body size; SUBMIT: image size
+        public int crc;
+        public String id;
+        public String filename;
+        public String[] sources;
+        public String outcome;
+        public int latency;     // ms
+
+        Record(byte kind, long time) {
+            this.kind = kind;
+            this.time = time;
+        }
+    }
+}
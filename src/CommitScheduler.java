@@ -0,0 +1,255 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps an index of the source files reserved by in-flight transactions so that the coordinator
+ * never sends a prepare that a node is bound to refuse. A commit whose sources are all free
+ * starts at once; a commit that conflicts with a running one is queued behind it, or rejected at
+ * once with -Dconflicts=reject. A commit that needs a source consumed by a commit that is still
+ * finishing can never succeed and is rejected without contacting any node; once every node has
+ * acknowledged that commit its sources are forgotten, so a file recreated under the same name can
+ * be committed again.
+ *
+ * When a transaction finishes its sources are freed and the queue is scanned in arrival order:
+ * every queued commit whose sources are free and not wanted by an earlier queued commit starts, so
+ * independent commits run in parallel while commits on the same file keep their order. Queued
+ * commits are started on a thread of their own, never inside the finishing transaction. The
+ * images of a queued commit are counted against the {@link PayloadManager} budget while it waits.
+ *
+ * Every shard submits and finishes commits here, so nothing on that path takes a lock: sources
+ * are reserved one by one in a concurrent map and all given back if any of them is taken, and
+ * scans of the queue are serialized by a counter instead of a monitor, so a thread that finds a
+ * scan running leaves its work to that scan and returns at once.
+ */
+public class CommitScheduler {
+
+    private static final boolean REJECT = "reject".equals(System.getProperty("conflicts"));
+
+    private static final ConcurrentHashMap<String, String> reserved = new ConcurrentHashMap<>(); // source -> transaction id
+    private static final ConcurrentHashMap<String, Set<String>> reservations = new ConcurrentHashMap<>(); // id -> sources
+    private static final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentHashMap<String, Integer> wanted = new ConcurrentHashMap<>(); // source -> queued commits
+    private static final Set<String> consumed = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentHashMap<String, Set<String>> consumedBy = new ConcurrentHashMap<>(); // id -> sources
+    private static final AtomicInteger scans = new AtomicInteger(); // requested scans, 0 when none runs
+    private static final ExecutorService starter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "commit-starter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Submits a new commit. The commit either starts now, on the calling thread, or is queued and
+     * started on the starter thread once the transaction it waits for finishes.
+     *
+     * @param id      The transaction ID.
+     * @param sources The sources of the commit, as "node:file" strings.
+     * @param size    The total size of the commit's images, held against the image budget while
+     *                the commit is queued.
+     * @param start   Starts the transaction once its sources are reserved.
+     * @return false if the commit was rejected, otherwise true.
+     */
+    public static boolean submit(String id, Collection<String> sources, long size, Runnable start) {
+        if (isConsumed(id, sources)) {
+            return false;
+        }
+        if (Collections.disjoint(wanted.keySet(), sources) && tryReserve(id, sources)) {
+            if (isConsumed(id, sources)) { // consumed by a commit that freed it after the first check
+                unreserve(id);
+                return false;
+            }
+            start.run();
+            return true;
+        }
+        if (REJECT) {
+            System.out.println("Server: rejecting " + id + ", its sources are in use");
+            return false;
+        }
+        System.out.println("Server: queueing " + id + " behind a conflicting transaction");
+        for (String source : sources) {
+            wanted.merge(source, 1, Integer::sum);
+        }
+        PayloadManager.hold(id, size);
+        queue.add(new Pending(id, sources, start));
+        scan(); // the conflicting transaction may have finished meanwhile
+        return true;
+    }
+
+    /**
+     * Reserves the sources of a transaction that is already running, such as one recovered from
+     * its log, without checking for conflicts.
+     *
+     * @param id      The transaction ID.
+     * @param sources The sources of the transaction.
+     */
+    public static void reserve(String id, Collection<String> sources) {
+        reservations.put(id, new HashSet<>(sources));
+        for (String source : sources) {
+            reserved.put(source, id);
+        }
+    }
+
+    /**
+     * Frees the sources of a transaction once its outcome is decided and starts the queued commits
+     * that can now run. After a commit its sources no longer exist on the nodes, so queued commits
+     * that need them are dropped instead.
+     *
+     * @param id        The transaction ID.
+     * @param committed Whether the transaction committed.
+     */
+    public static void finish(String id, boolean committed) {
+        Set<String> sources = reservations.get(id);
+        if (sources == null) {
+            return;
+        }
+        if (committed) {
+            consumedBy.put(id, sources);
+            consumed.addAll(sources); // before the sources are freed, so whoever reserves them next sees it
+        }
+        unreserve(id);
+        scan();
+    }
+
+    /**
+     * Forgets the sources consumed by a committed transaction once every node has applied the
+     * commit, so that later commits of files recreated under the same names are accepted.
+     *
+     * @param id The transaction ID.
+     */
+    public static void done(String id) {
+        Set<String> sources = consumedBy.remove(id);
+        if (sources != null) {
+            consumed.removeAll(sources);
+        }
+    }
+
+    /**
+     * Rejects a commit that needs a source an earlier commit has consumed.
+     *
+     * @param id      The transaction ID.
+     * @param sources The sources of the commit.
+     * @return true if the commit was rejected, otherwise false.
+     */
+    private static boolean isConsumed(String id, Collection<String> sources) {
+        for (String source : sources) {
+            if (consumed.contains(source)) {
+                System.out.println("Server: rejecting " + id + ", source " + source + " was already committed");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reserves every source of a transaction, or none of them if any is taken.
+     *
+     * @param id      The transaction ID.
+     * @param sources The sources to reserve.
+     * @return true if all sources were reserved, otherwise false.
+     */
+    private static boolean tryReserve(String id, Collection<String> sources) {
+        Set<String> taken = new HashSet<>();
+        for (String source : sources) {
+            if (reserved.putIfAbsent(source, id) != null) {
+                for (String t : taken) {
+                    reserved.remove(t, id);
+                }
+                return false;
+            }
+            taken.add(source);
+        }
+        reservations.put(id, taken);
+        return true;
+    }
+
+    /**
+     * Frees the sources reserved by a transaction.
+     *
+     * @param id The transaction ID.
+     */
+    private static void unreserve(String id) {
+        Set<String> sources = reservations.remove(id);
+        if (sources != null) {
+            for (String source : sources) {
+                reserved.remove(source, id);
+            }
+        }
+    }
+
+    /**
+     * Scans the queue in arrival order, dropping commits that need a consumed source and starting
+     * those whose sources are free and not wanted by an earlier queued commit. Only one thread
+     * scans at a time; a thread that asks for a scan while another one runs makes that thread scan
+     * again instead of waiting for it.
+     */
+    private static void scan() {
+        if (scans.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Set<String> blocked = new HashSet<>();
+            Iterator<Pending> it = queue.iterator();
+            while (it.hasNext()) {
+                Pending pending = it.next();
+                if (Collections.disjoint(pending.sources, blocked) && tryReserve(pending.id, pending.sources)) {
+                    dequeue(it, pending);
+                    if (Collections.disjoint(pending.sources, consumed)) {
+                        starter.execute(pending.start);
+                        continue;
+                    }
+                    unreserve(pending.id);
+                } else if (Collections.disjoint(pending.sources, consumed)) {
+                    blocked.addAll(pending.sources);
+                    continue;
+                } else {
+                    dequeue(it, pending);
+                }
+                System.out.println("Server: dropping queued " + pending.id + ", a source was committed");
+                Watermark.close(pending.id);
+                CommitTracker.decided(pending.id, CommitTracker.Outcome.REJECTED);
+            }
+            missed = scans.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Removes a commit from the queue, from the sources wanted by queued commits and from the
+     * image budget.
+     *
+     * @param it      The queue iterator positioned on the commit.
+     * @param pending The commit.
+     */
+    private static void dequeue(Iterator<Pending> it, Pending pending) {
+        it.remove();
+        PayloadManager.unhold(pending.id);
+        for (String source : pending.sources) {
+            wanted.computeIfPresent(source, (s, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    /**
+     * A commit waiting for its sources.
+     */
+    private static class Pending {
+
+        private final String id;
+        private final Collection<String> sources;
+        private final Runnable start;
+
+        Pending(String id, Collection<String> sources, Runnable start) {
+            this.id = id;
+            this.sources = List.copyOf(sources);
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lets code in the coordinator's process follow the commits it submits. Every commit submitted
+ * through {@link Server#submitCommit} gets a future that completes with its outcome once it is
+ * decided, and registered listeners hear of every phase change of every transaction, so a pipeline
+ * can submit a dependent commit as soon as the one before it is decided.
+ *
+ * A commit is reported committed once its commit record and composites are durable, aborted as
+ * soon as the abort is decided, which includes aborts after a timeout or a suspected node, and
+ * rejected when the {@link CommitScheduler} turns it away without starting it. Futures are
+ * completed and listeners called on one notifier thread, in the order of the events, and never
+ * while the coordinator holds a transaction's lock, so both may submit further commits.
+ */
+public class CommitTracker {
+
+    private static final ConcurrentHashMap<String, Tracked> tracked = new ConcurrentHashMap<>();
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private static final ExecutorService notifier = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "commit-notifier");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Starts tracking a submitted commit.
+     *
+     * @param id The transaction ID.
+     * @return A future completed with the commit's result.
+     */
+    public static CompletableFuture<Result> track(String id) {
+        Tracked t = new Tracked(System.currentTimeMillis());
+        tracked.put(id, t);
+        return t.future;
+    }
+
+    /**
+     * Registers a listener for the phase changes of all transactions.
+     *
+     * @param listener The listener.
+     */
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener The listener.
+     */
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reports that a transaction has entered a phase.
+     *
+     * @param id    The transaction ID.
+     * @param phase The new phase.
+     */
+    public static void phaseChanged(String id, Transaction.Phase phase) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        notifier.execute(() -> {
+            for (Listener listener : listeners) {
+                try {
+                    listener.onPhaseChange(id, phase);
+                } catch (RuntimeException e) {
+                    System.out.println("Commit listener failed on " + id + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Reports the outcome of a transaction and completes its future, if it is tracked.
+     *
+     * @param id      The transaction ID.
+     * @param outcome The outcome.
+     */
+    public static void decided(String id, Outcome outcome) {
+        Tracked t = tracked.remove(id);
+        if (t == null) {
+            return; // recovered from the log, so nobody in this process is waiting
+        }
+        Result result = new Result(id, outcome, t.submitTime, System.currentTimeMillis());
+        Capture.decided(result);
+        notifier.execute(() -> t.future.complete(result));
+    }
+
+    /**
+     * The outcome of a commit.
+     */
+    public enum Outcome {
+        COMMITTED, ABORTED, REJECTED
+    }
+
+    /**
+     * Receives the phase changes of transactions.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a transaction enters a phase: PREPARE when it starts, COMMIT or ABORT when
+         * it is decided, and DONE when it is finished and forgotten.
+         *
+         * @param id    The transaction ID.
+         * @param phase The new phase.
+         */
+        void onPhaseChange(String id, Transaction.Phase phase);
+    }
+
+    /**
+     * The outcome and timing of one commit.
+     */
+    public static class Result {
+
+        private final String id;
+        private final Outcome outcome;
+        private final long submitTime;
+        private final long decisionTime;
+
+        Result(String id, Outcome outcome, long submitTime, long decisionTime) {
+            this.id = id;
+            this.outcome = outcome;
+            this.submitTime = submitTime;
+            this.decisionTime = decisionTime;
+        }
+
+        public String getID() {
+            return id;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public long getSubmitTime() {
+            return submitTime;
+        }
+
+        public long getDecisionTime() {
+            return decisionTime;
+        }
+
+        /**
+         * Returns the time from submission to decision, including any time spent queued behind a
+         * conflicting commit.
+         *
+         * @return The latency in milliseconds.
+         */
+        public long getLatency() {
+            return decisionTime - submitTime;
+        }
+
+        @Override
+        public String toString() {
+            return id + ": " + outcome + " after " + getLatency() + " ms";
+        }
+    }
+
+    /**
+     * A submitted commit that has not been decided yet.
+     */
+    private static class Tracked {
+
+        private final long submitTime;
+        private final CompletableFuture<Result> future = new CompletableFuture<>();
+
+        Tracked(long submitTime) {
+            this.submitTime = submitTime;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A phi-accrual failure detector fed by the heartbeats UserNodes send to the coordinator. For each
+ * node it keeps a window of recent heartbeat inter-arrival times and turns the time since the last
+ * heartbeat into a suspicion level phi, the negative base-10 logarithm of the probability that a
+ * heartbeat this late is still on its way. A node is suspected once phi exceeds the threshold, so
+ * the verdict adapts to how regular that node's heartbeats have actually been.
+ *
+ * A node that has not sent two heartbeats yet is never suspected, which leaves it to the regular
+ * timeouts. The gap across a suspected period is not recorded, so a node coming back after a crash
+ * does not widen its own distribution.
+ */
+public class FailureDetector {
+
+    public static final int HEARTBEAT_INTERVAL = Integer.getInteger("heartbeatInterval", 250); // ms
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("phiThreshold", "8"));
+    private static final double MIN_STD_DEV = 200; // ms, absorbs message delay jitter
+    private static final int WINDOW = 100;
+
+    private static final ConcurrentHashMap<String, History> histories = new ConcurrentHashMap<>();
+
+    /**
+     * Records a heartbeat from a node.
+     *
+     * @param node The node that sent the heartbeat.
+     */
+    public static void heartbeat(String node) {
+        histories.computeIfAbsent(node, n -> new History()).record(System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether a node is suspected to have failed.
+     *
+     * @param node The node to check.
+     * @return true if the node's suspicion level exceeds the threshold, otherwise false.
+     */
+    public static boolean isSuspected(String node) {
+        History history = histories.get(node);
+        return history != null && history.phi(System.currentTimeMillis()) > THRESHOLD;
+    }
+
+    /**
+     * Returns every node that has sent a heartbeat.
+     *
+     * @return The known nodes.
+     */
+    public static Set<String> getNodes() {
+        return new HashSet<>(histories.keySet());
+    }
+
+    /**
+     * The heartbeat arrival history of one node.
+     */
+    private static class History {
+
+        private final ArrayDeque<Long> intervals = new ArrayDeque<>();
+        private long last = -1;
+        private double sum = 0;
+        private double sumOfSquares = 0;
+
+        synchronized void record(long now) {
+            if (last >= 0 && phi(now) <= THRESHOLD) {
+                long interval = now - last;
+                intervals.addLast(interval);
+                sum += interval;
+                sumOfSquares += (double) interval * interval;
+                if (intervals.size() > WINDOW) {
+                    long oldest = intervals.removeFirst();
+                    sum -= oldest;
+                    sumOfSquares -= (double) oldest * oldest;
+                }
+            }
+            last = now;
+        }
+
+        /**
+         * Computes phi with the logistic approximation of the normal distribution's tail.
+         *
+         * @param now The current time in milliseconds.
+         * @return The suspicion level, or 0 if there is no interval to judge by.
+         */
+        synchronized double phi(long now) {
+            if (intervals.isEmpty()) {
+                return 0;
+            }
+            double mean = sum / intervals.size();
+            double variance = sumOfSquares / intervals.size() - mean * mean;
+            double stdDev = Math.max(MIN_STD_DEV, Math.sqrt(Math.max(variance, 0)));
+            double y = (now - last - mean) / stdDev;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+}
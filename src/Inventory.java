@@ -0,0 +1,165 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The inventory of the regular files in a UserNode's directory, so that checking a prepare's
+ * sources is a memory lookup instead of a stat per file. It is listed once at startup and kept
+ * current by a {@link WatchService} and by the node's own deletes.
+ *
+ * A file in the inventory is taken to exist while a prepare is screened. Anything the inventory
+ * cannot vouch for falls back to a stat: a file it does not hold, since its creation may not have
+ * been reported yet, a path outside the directory, and every file while the inventory is being
+ * relisted after the watch service dropped events, or for good if the directory cannot be
+ * watched. A deletion may not have been reported yet either, so a hit is only a hint: a node
+ * confirms its files with {@link #verify(String)} before it votes Yes on them.
+ */
+public class Inventory {
+
+    private static final Path DIR = Paths.get(".");
+
+    private final Set<String> files = ConcurrentHashMap.newKeySet();
+    private volatile boolean reliable = false;
+
+    /**
+     * Lists the directory and starts watching it.
+     */
+    public Inventory() {
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            DIR.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            System.out.println("Cannot watch directory, checking files directly: " + e.getMessage());
+            return;
+        }
+        list();
+
+        Thread thread = new Thread(() -> watch(watcher), "inventory");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Checks whether a source file exists and is not a directory.
+     *
+     * @param file The file path.
+     * @return true if the file exists, otherwise false.
+     */
+    public boolean exists(String file) {
+        String name = nameOf(file);
+        if (reliable && name != null && files.contains(name)) {
+            return true;
+        }
+
+        File f = new File(file);
+        boolean exists = f.exists() && !f.isDirectory();
+        if (exists && name != null) {
+            files.add(name);
+        }
+        return exists;
+    }
+
+    /**
+     * Checks whether a source file exists with a stat, regardless of the inventory, and drops it
+     * from the inventory if its deletion has not been reported yet.
+     *
+     * @param file The file path.
+     * @return true if the file exists, otherwise false.
+     */
+    public boolean verify(String file) {
+        File f = new File(file);
+        if (f.exists() && !f.isDirectory()) {
+            return true;
+        }
+        remove(file);
+        return false;
+    }
+
+    /**
+     * Removes a file the node has deleted itself.
+     *
+     * @param file The file path.
+     */
+    public void remove(String file) {
+        String name = nameOf(file);
+        if (name != null) {
+            files.remove(name);
+        }
+    }
+
+    /**
+     * Applies the watch service's events for as long as the node is up.
+     *
+     * @param watcher The watch service registered on the directory.
+     */
+    private void watch(WatchService watcher) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                System.out.println("Inventory watch interrupted: " + e.getMessage());
+                reliable = false;
+                return;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    list(); // events were lost
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    Path path = (Path) event.context();
+                    if (Files.isRegularFile(DIR.resolve(path))) {
+                        files.add(path.toString());
+                    }
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    files.remove(((Path) event.context()).toString());
+                }
+            }
+            if (!key.reset()) {
+                System.out.println("Directory no longer watched, checking files directly");
+                reliable = false;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Relists the directory. Lookups stat files until the listing is complete.
+     */
+    private void list() {
+        reliable = false;
+        files.clear();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(DIR)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    files.add(entry.getFileName().toString());
+                }
+            }
+            reliable = true;
+        } catch (IOException e) {
+            System.out.println("Error listing directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the name under which a file is held, if it lies directly in the directory.
+     *
+     * @param file The file path.
+     * @return The file name, or null for a path elsewhere.
+     */
+    private static String nameOf(String file) {
+        Path path = Paths.get(file).normalize();
+        return path.getParent() == null && !path.toString().isEmpty() ? path.toString() : null;
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The single journal of a UserNode. Every vote, ACK, one-phase outcome and finished deletion of
+ * every transaction is appended to one file as an "id:Status" line, and an in-memory index of the records answers
+ * repeated requests without reading the file.
+ *
+ * Records that must be durable before their reply is sent are synced by group commit: appends
+ * only queue the record, and a sync thread runs one fsync for everything queued since the last
+ * one, then completes the futures the replies wait on. Concurrent transactions therefore share
+ * their fsyncs. Records below the coordinator's forget watermark are dropped from the index, and
+ * when forgotten records outnumber live ones the file is rewritten with only the live records, so
+ * the journal stays proportional to the transactions still in flight.
+ *
+ * A Yes vote and a one-phase commit are recorded with the node's files, as "id:Yes:files" and
+ * "id:Committed:files", so that a restarted node can tell which files its in-doubt transactions
+ * hold and which deletes it may not have finished. The file is read once at startup, and a large journal is parsed in
+ * parallel.
+ */
+public class Journal {
+
+    private static final String PATH = "./journal";
+    private static final String TMP_PATH = "./journal.tmp";
+    private static final String WATERMARK = "watermark:";
+    private static final int COMPACT_THRESHOLD = 1024; // forgotten records
+    private static final int PARALLEL_LOAD = 10000; // lines
+
+    private final ProjectLib PL;
+    private final LinkedHashMap<String, List<String>> index = new LinkedHashMap<>();
+    private List<Pending> pending = new ArrayList<>();
+    private FileOutputStream out;
+    private int forgotten = 0;
+
+    /**
+     * Opens the journal, loading the records left by earlier runs, and starts its sync thread.
+     *
+     * @param PL An instance of ProjectLib used to make records durable.
+     */
+    public Journal(ProjectLib PL) {
+        this.PL = PL;
+        load();
+        try {
+            out = new FileOutputStream(PATH, true);
+        } catch (IOException e) {
+            System.out.println("Error opening journal: " + e.getMessage());
+        }
+        Thread syncer = new Thread(this::sync, "journal-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Appends a record that must be durable before anyone acts on it.
+     *
+     * @param record The record, in the form "id:Status".
+     * @return A future completed once the record has been flushed to stable storage.
+     */
+    public synchronized CompletableFuture<Void> append(String record) {
+        Pending p = new Pending(record);
+        Tracer.Span span = Tracer.startAsync("journal", id(record));
+        p.future.thenRun(span::end);
+        writeLine(record);
+        pending.add(p);
+        notifyAll();
+        return p.future;
+    }
+
+    /**
+     * Appends a record without waiting for it to be flushed. It becomes durable with the next
+     * group commit, or is lost if the node fails first.
+     *
+     * @param record The record, in the form "id:Status".
+     */
+    public synchronized void write(String record) {
+        writeLine(record);
+        addToIndex(record);
+    }
+
+    /**
+     * Finds a durable record of a transaction.
+     *
+     * @param transactionId The transaction ID.
+     * @param statuses      The statuses to look for.
+     * @return The first matching record as "id:Status", without any further fields, or null if
+     *         there is none.
+     */
+    public synchronized String find(String transactionId, String... statuses) {
+        List<String> records = index.get(transactionId);
+        if (records != null) {
+            for (String status : records) {
+                for (String wanted : statuses) {
+                    if (status.equals(wanted) || status.startsWith(wanted + ":")) {
+                        return transactionId + ":" + wanted;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns every durable record still in the index, for recovery.
+     *
+     * @return A copy of the index: the statuses of each transaction, in journal order.
+     */
+    public synchronized Map<String, List<String>> getRecords() {
+        Map<String, List<String>> records = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : index.entrySet()) {
+            records.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return records;
+    }
+
+    /**
+     * Drops the records of every transaction below the coordinator's forget watermark.
+     *
+     * @param watermark The watermark; every lower transaction ID is forgotten.
+     */
+    public synchronized void forgetBelow(String watermark) {
+        int before = forgotten;
+        dropBelow(watermark);
+        if (forgotten > before) {
+            writeLine(WATERMARK + watermark);
+            forgotten++;
+        }
+    }
+
+    /**
+     * Runs group commits for as long as the node is up: waits for queued records, flushes them all
+     * with one fsync, indexes them and releases the replies waiting on them.
+     */
+    private void sync() {
+        while (true) {
+            List<Pending> batch;
+            synchronized (this) {
+                while (pending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        System.out.println("Journal sync interrupted: " + e.getMessage());
+                        return;
+                    }
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+
+            PL.fsync();
+
+            synchronized (this) {
+                for (Pending p : batch) {
+                    addToIndex(p.record);
+                }
+                if (forgotten >= COMPACT_THRESHOLD && forgotten > index.size() && pending.isEmpty()) {
+                    compact();
+                }
+            }
+            for (Pending p : batch) {
+                p.future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the records still in the index. The new file is made durable
+     * before it atomically replaces the old one.
+     */
+    private void compact() {
+        try (FileOutputStream tmp = new FileOutputStream(TMP_PATH)) {
+            for (Map.Entry<String, List<String>> entry : index.entrySet()) {
+                for (String status : entry.getValue()) {
+                    tmp.write((entry.getKey() + ":" + status + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error compacting journal: " + e.getMessage());
+            return;
+        }
+
+        PL.fsync();
+        try {
+            out.close();
+            Files.move(new File(TMP_PATH).toPath(), new File(PATH).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            PL.fsync();
+            out = new FileOutputStream(PATH, true);
+            forgotten = 0;
+        } catch (IOException e) {
+            System.out.println("Error installing compacted journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rebuilds the index from the journal file. A record survives unless a later watermark line
+     * is above its transaction ID, so one backward pass over the watermark lines finds, for every
+     * line, the highest watermark after it. The records are then filtered and grouped by
+     * transaction, in parallel for a large journal; the grouping keeps journal order.
+     */
+    private void load() {
+        File file = new File(PATH);
+        if (!file.exists()) {
+            return;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Error reading journal: " + e.getMessage());
+            return;
+        }
+
+        String[] laterWatermark = new String[lines.size()];
+        String highest = "";
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            laterWatermark[i] = highest;
+            if (lines.get(i).startsWith(WATERMARK)) {
+                String watermark = lines.get(i).substring(WATERMARK.length());
+                highest = watermark.compareTo(highest) > 0 ? watermark : highest;
+            }
+        }
+
+        IntStream positions = IntStream.range(0, lines.size());
+        if (lines.size() >= PARALLEL_LOAD) {
+            positions = positions.parallel();
+        }
+        Map<String, List<String>> live = positions
+                .filter(i -> !lines.get(i).startsWith(WATERMARK) && lines.get(i).indexOf(':') > 0)
+                .filter(i -> id(lines.get(i)).compareTo(laterWatermark[i]) >= 0)
+                .mapToObj(i -> lines.get(i).split(":", 2))
+                .collect(Collectors.groupingBy(parts -> parts[0], LinkedHashMap::new,
+                        Collectors.mapping(parts -> parts[1], Collectors.toCollection(ArrayList::new))));
+        index.putAll(live);
+        forgotten = lines.size() - index.values().stream().mapToInt(List::size).sum();
+    }
+
+    private void dropBelow(String watermark) {
+        Iterator<Map.Entry<String, List<String>>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, List<String>> entry = it.next();
+            if (entry.getKey().compareTo(watermark) < 0) {
+                forgotten += entry.getValue().size();
+                it.remove();
+            }
+        }
+    }
+
+    private static String id(String record) {
+        return record.substring(0, record.indexOf(':'));
+    }
+
+    private void addToIndex(String record) {
+        String[] parts = record.split(":", 2);
+        index.computeIfAbsent(parts[0], id -> new ArrayList<>()).add(parts[1]);
+    }
+
+    private void writeLine(String record) {
+        try {
+            out.write((record + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.out.println("Error writing to journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A record waiting for the next group commit.
+     */
+    private static class Pending {
+
+        private final String record;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(String record) {
+            this.record = record;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The in-memory table of the files a UserNode has locked for its transactions. Locking and
+ * unlocking are map operations, so a prepare costs no system calls. Only the UserNode process
+ * touches its files, which makes the table sufficient on its own; when other processes must also
+ * be kept out, OS locks can be turned on and each locked file then holds one open channel with an
+ * exclusive lock, closed as soon as the file is unlocked.
+ *
+ * A file normally has one holder. Recovery may give it several, since the journal cannot tell
+ * which of two in-doubt transactions that voted Yes on a file voted last; the file then stays
+ * locked until every holder has released it.
+ *
+ * The table is not thread-safe; callers synchronize on it.
+ */
+public class LockTable {
+
+    private final boolean osLocks;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Constructs an empty lock table.
+     *
+     * @param osLocks Whether to back every lock with an OS file lock.
+     */
+    public LockTable(boolean osLocks) {
+        this.osLocks = osLocks;
+    }
+
+    /**
+     * Checks whether a file is locked by any transaction.
+     *
+     * @param file The file path.
+     * @return true if the file is locked, otherwise false.
+     */
+    public boolean isLocked(String file) {
+        return entries.containsKey(file);
+    }
+
+    /**
+     * Returns the transactions holding the lock on a file.
+     *
+     * @param file The file path.
+     * @return The owning transaction IDs, empty if the file is not locked.
+     */
+    public List<String> getOwners(String file) {
+        Entry entry = entries.get(file);
+        return entry == null ? List.of() : entry.owners;
+    }
+
+    /**
+     * Locks a file for a transaction. The caller has checked that the file is free.
+     *
+     * @param owner The transaction taking the lock.
+     * @param file  The file path.
+     * @throws IOException If the OS lock cannot be taken.
+     */
+    public void lock(String owner, String file) throws IOException {
+        Entry entry = new Entry(owner);
+        if (osLocks) {
+            entry.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                entry.lock = entry.channel.lock();
+            } catch (IOException e) {
+                entry.channel.close();
+                throw e;
+            }
+        }
+        entries.put(file, entry);
+    }
+
+    /**
+     * Adds a transaction as a holder of a file, locking the file if it is free. A file that is
+     * already locked keeps its other holders.
+     *
+     * @param owner The transaction taking the lock.
+     * @param file  The file path.
+     * @throws IOException If the OS lock cannot be taken.
+     */
+    public void share(String owner, String file) throws IOException {
+        Entry entry = entries.get(file);
+        if (entry == null) {
+            lock(owner, file);
+        } else if (!entry.owners.contains(owner)) {
+            entry.owners.add(owner);
+        }
+    }
+
+    /**
+     * Releases a transaction's hold on a file. The file is unlocked, and its channel closed if it
+     * has one, once its last holder has released it.
+     *
+     * @param owner The transaction releasing the lock.
+     * @param file  The file path.
+     * @return true if the file is now free, false if the transaction did not hold it or another
+     *         transaction still does.
+     * @throws IOException If an I/O error occurs while releasing the OS lock.
+     */
+    public boolean unlock(String owner, String file) throws IOException {
+        Entry entry = entries.get(file);
+        if (entry == null || !entry.owners.remove(owner) || !entry.owners.isEmpty()) {
+            return false;
+        }
+        entries.remove(file);
+        if (entry.channel != null) {
+            try {
+                entry.lock.release();
+            } finally {
+                entry.channel.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * One locked file.
+     */
+    private static class Entry {
+
+        private final List<String> owners = new ArrayList<>(1);
+        private FileChannel channel;
+        private FileLock lock;
+
+        Entry(String owner) {
+            owners.add(owner);
+        }
+    }
+}
@@ -1,19 +1,34 @@
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Manages the logging activities for transactions within a distributed system. This class is responsible
  * for creating log files, writing to them, and safely closing and deleting them upon the completion
  * of transactions. It ensures that all transaction-related activities are logged for recovery and
  * auditing purposes.
+ *
+ * Every log that is written to or deleted is also listed, once per {@link Snapshot} period, in a
+ * manifest. When a snapshot is taken the manifest is set aside and a new one started, so recovery
+ * only has to read the logs listed since the last snapshot rather than list and check them all.
  */
 public class Log {
 
+    private static final String MANIFEST_PATH = "./logs.touched";
+    private static final String OLD_MANIFEST_PATH = "./logs.touched.old";
+
+    private String transactionId;
     private String logFilePath;
-    private FileWriter fileWriter;
+    private FileOutputStream fileWriter;
     private File logFile;
+    private int touchedGeneration = -1;
     private static final Object lock = new Object();
+    private static FileOutputStream manifest;
+    private static volatile int generation = 0;
 
     /**
      * Constructs a Log object associated with a specific transaction ID.
@@ -32,6 +47,7 @@ public class Log {
      * @param transactionId The transaction ID for which the log file is being initialized.
      */
     private void initLogFile(String transactionId) {
+        this.transactionId = transactionId;
         logFilePath = "./logs/" + transactionId + ".log";
         
         synchronized (lock) {
@@ -48,7 +64,7 @@ public class Log {
                     }
                 }
         
-                fileWriter = new FileWriter(logFilePath, true); // append mode
+                fileWriter = new FileOutputStream(logFilePath, true); // append mode
             } catch (IOException e) {
                 System.out.println("Error opening transaction log file: " + e.getMessage());
             }
@@ -62,10 +78,33 @@ public class Log {
      * @param message The message to be written to the log.
      */
     public synchronized void write2Log(String message) {
+        touch();
         try {
-            fileWriter.write(message);
-            fileWriter.write(System.lineSeparator());
-            fileWriter.flush();
+            fileWriter.write((message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.out.println("Error writing to transaction log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a record that embeds encoded payloads, writing the payload bytes directly instead
+     * of building the whole record as a String first. Multiple payloads are separated by ';'.
+     *
+     * @param prefix   The text before the payloads.
+     * @param payloads The encoded payloads, as ASCII bytes.
+     * @param suffix   The text after the payloads.
+     */
+    public synchronized void write2Log(String prefix, byte[][] payloads, String suffix) {
+        touch();
+        try {
+            fileWriter.write(prefix.getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < payloads.length; i++) {
+                if (i > 0) {
+                    fileWriter.write(';');
+                }
+                fileWriter.write(payloads[i]);
+            }
+            fileWriter.write((suffix + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
         } catch (IOException e) {
             System.out.println("Error writing to transaction log: " + e.getMessage());
         }
@@ -81,11 +120,12 @@ public class Log {
     }
 
     /**
-     * Closes the FileWriter and deletes the log file. This method is typically called when a transaction
+     * Closes the log stream and deletes the log file. This method is typically called when a transaction
      * is complete and the log file is no longer needed. It ensures that resources are freed and the
      * system's integrity is maintained by removing unnecessary log files.
      */
     public void close() {
+        touch();
         try {
             fileWriter.close();
             File logFile = new File(logFilePath);
@@ -98,4 +138,83 @@ public class Log {
             System.out.println("Error closing file writer: " + e.getMessage());
         }
     }
+
+    /**
+     * Lists this log in the current manifest, unless it is already listed there. The line is
+     * written before the log changes, so it is durable no later than the change.
+     */
+    private void touch() {
+        if (touchedGeneration == generation) {
+            return;
+        }
+        synchronized (lock) {
+            touchedGeneration = generation;
+            try {
+                if (manifest == null) {
+                    manifest = new FileOutputStream(MANIFEST_PATH, true);
+                }
+                manifest.write((transactionId + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.out.println("Error writing log manifest: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sets the current manifest aside and starts a new one; logs changed from now on are listed in
+     * the new one. If a set-aside manifest is still there because the snapshot it was set aside for
+     * was never installed, the current one is added to it.
+     */
+    public static void rotateManifest() {
+        synchronized (lock) {
+            try {
+                if (manifest != null) {
+                    manifest.close();
+                    manifest = null;
+                }
+                File current = new File(MANIFEST_PATH);
+                if (current.exists()) {
+                    try (FileOutputStream old = new FileOutputStream(OLD_MANIFEST_PATH, true)) {
+                        old.write(Files.readAllBytes(current.toPath()));
+                    }
+                    Files.delete(current.toPath());
+                }
+            } catch (IOException e) {
+                System.out.println("Error rotating log manifest: " + e.getMessage());
+            }
+            generation++;
+        }
+    }
+
+    /**
+     * Drops the manifest set aside for a snapshot once that snapshot is installed.
+     */
+    public static void dropOldManifest() {
+        new File(OLD_MANIFEST_PATH).delete();
+    }
+
+    /**
+     * Reads the IDs of the transactions whose logs changed since the latest installed snapshot.
+     *
+     * @return The transaction IDs, or null if the manifests cannot be read.
+     */
+    public static Set<String> readManifests() {
+        Set<String> ids = new HashSet<>();
+        try {
+            for (String path : new String[] {OLD_MANIFEST_PATH, MANIFEST_PATH}) {
+                File file = new File(path);
+                if (file.exists()) {
+                    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                        if (!line.isEmpty()) {
+                            ids.add(line);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading log manifest: " + e.getMessage());
+            return null;
+        }
+        return ids;
+    }
 }
@@ -1,33 +1,48 @@
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A class that acts as a receiver for messages related to transactions within a distributed system.
- * It implements {@link Runnable} to allow it to run in a separate thread, constantly listening for
- * and processing incoming messages via a specified instance of {@link ProjectLib}.
+ * It implements {@link Runnable} to allow it to run in a separate thread, constantly taking and
+ * processing the messages that {@link MsgRouter} routes to its shard.
  */
 public class MsgReceiver implements Runnable {
 
+    static final byte[] INQUIRY = "inquiry:".getBytes(); // the prefix of a participant's inquiry
+    private static final int EVICT_INTERVAL = 1000; // ms; the longest a finished transaction stays when no message comes
+
     private ConcurrentHashMap<String, Transaction> transactions;
+    private BlockingQueue<ProjectLib.Message> inbox;
     private ProjectLib PL;
+    private final ReplyFilter filter = new ReplyFilter();
+    private final ConcurrentLinkedQueue<String> finished = new ConcurrentLinkedQueue<>();
 
     /**
-     * Constructs a MsgReceiver with a map of transactions and a project library instance.
+     * Constructs a MsgReceiver with a map of transactions and the inbox of their shard.
      * This setup enables the MsgReceiver to access and update transactions based on the incoming messages.
      *
      * @param transactions A concurrent hash map of transactions indexed by transaction IDs.
      *                     This map allows the receiver to fetch and update the status of transactions as messages are processed.
-     * @param PL           An instance of ProjectLib used for receiving messages from other nodes or processes in the system.
+     * @param inbox        The queue of messages routed to this receiver's shard.
+     * @param PL           An instance of ProjectLib used to answer inquiries about unknown transactions.
      */
-    public MsgReceiver(ConcurrentHashMap<String, Transaction> transactions, ProjectLib PL) {
+    public MsgReceiver(ConcurrentHashMap<String, Transaction> transactions, BlockingQueue<ProjectLib.Message> inbox, ProjectLib PL) {
         this.transactions = transactions;
+        this.inbox = inbox;
         this.PL = PL;
     }
 
     /**
-     * When executed by a thread, this method continuously listens for new messages from the project library.
-     * Upon receiving a message, it performs the following actions:
+     * When executed by a thread, this method continuously takes new messages from the shard's inbox.
+     * Before each message, and at least every {@link #EVICT_INTERVAL}, it evicts the transactions
+     * reported by {@link #finished}. Upon receiving a message, it performs the following actions:
      * - Parses the message to determine the transaction ID.
-     * - Retrieves the corresponding Transaction object from the map.
+     * - Retrieves the corresponding Transaction object from the map, dropping the message if the
+     *   transaction is unknown or finished; a finished transaction is evicted from the map.
+     * - Passes the message through the {@link ReplyFilter}, which drops duplicate and stale replies.
      * - Updates the transaction's response time to the current time.
      * - Calls the transaction's handleRes method to process the message based on the transaction's current state.
      * 
@@ -36,13 +51,113 @@ public class MsgReceiver implements Runnable {
      */
     @Override
     public void run() {
-        while (true) {
-            ProjectLib.Message msg = PL.getMessage();
-            String parts[] = new String(msg.body).split(":", 2);
-            String transactionId = parts[0];
-            Transaction transaction = transactions.get(transactionId);
-            transaction.setResponseTime(System.currentTimeMillis());
-            transaction.handleRes(msg);
+        try {
+            while (true) {
+                ProjectLib.Message msg = inbox.poll(EVICT_INTERVAL, TimeUnit.MILLISECONDS);
+                String id;
+                while ((id = finished.poll()) != null) {
+                    evict(id);
+                }
+                if (msg == null) {
+                    continue;
+                }
+                if (isInquiry(msg)) {
+                    handleInquiry(msg);
+                    continue;
+                }
+                String parts[] = new String(msg.body).split(":", 2);
+                String transactionId = parts[0];
+                Transaction transaction = transactions.get(transactionId);
+                if (transaction == null || transaction.getPhase() == Transaction.Phase.DONE) {
+                    drop(transactionId, transaction, msg);
+                    continue;
+                }
+                if (parts.length < 2 || !filter.accept(transaction, msg.addr, parts[1])) {
+                    continue; // duplicate or stale
+                }
+                if (transaction.getMailbox() != null) {
+                    transaction.getMailbox().add(msg); // driven by TransactionEngine
+                    continue;
+                }
+                Tracer.Span span = Tracer.start("receive", transactionId);
+                transaction.setResponseTime(System.currentTimeMillis());
+                transaction.handleRes(msg);
+                span.end();
+                if (transaction.getPhase() == Transaction.Phase.DONE) {
+                    evict(transactionId);
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("MsgReceiver interrupted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops a reply for a transaction that is not open, evicting it from the map if it has just
+     * finished. Late replies for finished transactions are expected and dropped quietly; a reply
+     * for an ID this shard has never finished is reported.
+     *
+     * @param transactionId The transaction ID.
+     * @param transaction   The finished transaction, or null if it is not in the map.
+     * @param msg           The reply.
+     */
+    private void drop(String transactionId, Transaction transaction, ProjectLib.Message msg) {
+        if (transaction != null) {
+            evict(transactionId);
+        } else if (!filter.isFinished(transactionId)) {
+            System.out.println("Dropping reply from " + msg.addr + " for unknown transaction " + transactionId);
+        }
+    }
+
+    /**
+     * Asks for a transaction that has finished off this thread, such as on a
+     * {@link TransactionEngine} thread or after a group commit, to be evicted. The receiver
+     * evicts it before it handles its next message, or within {@link #EVICT_INTERVAL} if none
+     * comes.
+     *
+     * @param transactionId The transaction ID.
+     */
+    public void finished(String transactionId) {
+        finished.add(transactionId);
+    }
+
+    /**
+     * Removes a finished transaction from the map and records it in the {@link ReplyFilter}.
+     *
+     * @param transactionId The transaction ID.
+     */
+    private void evict(String transactionId) {
+        if (transactions.remove(transactionId) != null) {
+            filter.finish(transactionId);
+        }
+    }
+
+    /**
+     * Checks whether a message is a participant's inquiry, in the form "inquiry:id".
+     *
+     * @param msg The message received from a node.
+     * @return true for an inquiry, otherwise false.
+     */
+    public static boolean isInquiry(ProjectLib.Message msg) {
+        return msg.body.length >= INQUIRY.length && Arrays.equals(msg.body, 0, INQUIRY.length, INQUIRY, 0, INQUIRY.length);
+    }
+
+    /**
+     * Answers a participant that is in doubt about a transaction. A transaction in the table
+     * answers from its phase. A transaction that is not in the table was either never logged or
+     * finished after every participant acknowledged, so no participant can be waiting on a
+     * commit of it, and the answer is abort.
+     *
+     * @param msg The inquiry.
+     */
+    private void handleInquiry(ProjectLib.Message msg) {
+        String transactionId = new String(msg.body).split(":", 2)[1];
+        Transaction transaction = transactions.get(transactionId);
+        if (transaction != null) {
+            transaction.answerInquiry(msg.addr);
+        } else {
+            System.out.println("Answering inquiry from " + msg.addr + " with abort id: " + transactionId);
+            PL.sendMessage(Tracer.message(msg.addr, ("status:" + transactionId + ":abort").getBytes(), transactionId));
         }
     }
 }
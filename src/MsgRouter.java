@@ -0,0 +1,57 @@
+import java.util.Arrays;
+
+/**
+ * Sits in front of {@link ProjectLib#getMessage()} and hands every reply to the shard that owns
+ * its transaction. The router does no protocol work itself and only reads the id at the front of
+ * each body, so a single router thread can feed many shards.
+ */
+public class MsgRouter implements Runnable {
+
+    private Shard[] shards;
+    private ProjectLib PL;
+
+    /**
+     * Constructs a router for the given shards.
+     *
+     * @param shards The coordinator's shards.
+     * @param PL     An instance of ProjectLib used for receiving messages.
+     */
+    public MsgRouter(Shard[] shards, ProjectLib PL) {
+        this.shards = shards;
+        this.PL = PL;
+    }
+
+    private static final byte[] HEARTBEAT = "heartbeat".getBytes();
+
+    /**
+     * Continuously receives messages and routes each one by the transaction id in its first field,
+     * or in its second field for an inquiry. Heartbeats go straight to the {@link FailureDetector}.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            ProjectLib.Message msg = PL.getMessage();
+            Tracer.receive(msg);
+            if (isHeartbeat(msg)) {
+                FailureDetector.heartbeat(msg.addr);
+                continue;
+            }
+            int start = MsgReceiver.isInquiry(msg) ? MsgReceiver.INQUIRY.length : 0;
+            int end = start;
+            while (end < msg.body.length && msg.body[end] != ':') {
+                end++;
+            }
+            shards[Shard.of(msg.body, start, end, shards.length)].deliver(msg);
+        }
+    }
+
+    /**
+     * Checks whether a message is a node's heartbeat.
+     *
+     * @param msg The message received from a node.
+     * @return true for a heartbeat, otherwise false.
+     */
+    private static boolean isHeartbeat(ProjectLib.Message msg) {
+        return Arrays.equals(msg.body, HEARTBEAT);
+    }
+}
@@ -38,7 +38,7 @@ public class MsgSender implements Runnable {
         try {
             while (true) {
                 for (Transaction transaction : transactions.values()) {
-                    if (!transaction.recvAllRes()) {
+                    if (transaction.getMailbox() == null && !transaction.recvAllRes()) {
                         if (transaction.getPhase() == Transaction.Phase.PREPARE) {
                             long currentTime = System.currentTimeMillis();
                             long startTime = transaction.getStartTime();
@@ -46,15 +46,26 @@ public class MsgSender implements Runnable {
                             System.out.println("start time: " + startTime);
                             long timeElapsed = currentTime - startTime;
                             System.out.println(transaction.getID() + " time elapsed: " + timeElapsed);
-                            if (timeElapsed > TIMEOUT) {
+                            if (timeElapsed > TIMEOUT && transaction.isOnePhase()) {
+                                Tracer.Span span = Tracer.start("retransmit", transaction.getID());
+                                transaction.retryOnePhase();
+                                span.end();
+                            } else if (timeElapsed > TIMEOUT) {
                                 transaction.abort();
                                 System.out.println("resending message: timeout aborting transaction " + transaction.getID());
+                            } else if (!transaction.isOnePhase() && transaction.hasSuspectedNode()) {
+                                transaction.abort();
+                                System.out.println("resending message: node suspected, aborting transaction " + transaction.getID());
                             }
                         } else if (transaction.getPhase() == Transaction.Phase.COMMIT) {
+                            Tracer.Span span = Tracer.start("retransmit", transaction.getID());
                             transaction.commit();
+                            span.end();
                             System.out.println("resending message: committing transaction " + transaction.getID());
                         } else if (transaction.getPhase() == Transaction.Phase.ABORT) {
+                            Tracer.Span span = Tracer.start("retransmit", transaction.getID());
                             transaction.abort();
+                            span.end();
                             System.out.println("resending message: aborting transaction " + transaction.getID());
                         } else {
                             System.out.println("error: fail to send message");
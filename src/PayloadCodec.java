@@ -0,0 +1,288 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the image payloads carried in prepare messages and stored in the WAL.
+ * A payload is always Base64 text. When the sender decides that compression is worthwhile the
+ * text is prefixed with a header flag, so a payload without the flag is plain Base64 and can
+ * be read by every node, whether it compresses its own payloads or not.
+ *
+ * Payloads arrive from the network and from logs that a crash may have cut short, so decoding
+ * rejects every malformed payload with an IllegalArgumentException, and never allocates more
+ * for a compressed payload than its compressed size could possibly inflate to.
+ */
+public class PayloadCodec {
+
+    private static final String DEFLATE_TAG = "deflate|";
+    private static final char FIELD_SEPARATOR = '|';
+    private static final int MIN_COMPRESS_SIZE = 8 * 1024; // bytes
+    private static final int SAMPLE_SIZE = 16 * 1024; // bytes
+    private static final double MAX_SAMPLE_RATIO = 0.9; // sample must shrink by at least 10%
+    private static final int MAX_RAW_LENGTH = 64 * 1024 * 1024; // bytes; larger payloads are sent as they are
+    private static final int MAX_DEFLATE_RATIO = 1032; // the most deflate can shrink its input
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("compress", "true"));
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[48 * 1024]); // multiple of 3 and 4
+
+    /**
+     * Encodes a payload for the wire, compressing it when it is large enough and a sample of it
+     * compresses well. The result is ASCII text returned as bytes, so it can be copied straight
+     * into message bodies and log records.
+     *
+     * @param payload The raw payload bytes.
+     * @return The encoded payload, either plain Base64 or a flagged compressed form.
+     */
+    public static byte[] encode(byte[] payload) {
+        if (shouldCompress(payload)) {
+            PooledBuffer compressed = deflate(payload, 0, payload.length, payload.length);
+            if (compressed != null) {
+                try {
+                    return toBase64(DEFLATE_TAG + payload.length + FIELD_SEPARATOR, compressed.buffer());
+                } finally {
+                    compressed.release();
+                }
+            }
+        }
+        return Base64.getEncoder().encode(payload);
+    }
+
+    /**
+     * Decodes a payload produced by {@link #encode(byte[])} or by a node that does not compress.
+     *
+     * @param encoded The encoded payload.
+     * @return The raw payload bytes.
+     */
+    public static byte[] decode(String encoded) {
+        return decode(encoded.getBytes(StandardCharsets.US_ASCII), 0);
+    }
+
+    /**
+     * Decodes a payload stored at the end of a message body, without first copying it into a
+     * String.
+     *
+     * @param body   The message body.
+     * @param offset The index at which the encoded payload starts.
+     * @return The raw payload bytes.
+     */
+    public static byte[] decode(byte[] body, int offset) {
+        return decode(body, offset, body.length);
+    }
+
+    /**
+     * Decodes a payload stored in a region of a message body, without first copying it into a
+     * String.
+     *
+     * @param body   The message body.
+     * @param offset The index at which the encoded payload starts.
+     * @param end    The index just past the encoded payload.
+     * @return The raw payload bytes.
+     * @throws IllegalArgumentException If the region is out of bounds or does not hold a valid
+     *                                  payload.
+     */
+    public static byte[] decode(byte[] body, int offset, int end) {
+        if (offset < 0 || end > body.length || offset > end) {
+            throw new IllegalArgumentException("Payload region " + offset + ".." + end + " outside a body of " + body.length + " bytes");
+        }
+        int tagLength = DEFLATE_TAG.length();
+        boolean compressed = end - offset > tagLength
+                && DEFLATE_TAG.equals(new String(body, offset, tagLength, StandardCharsets.US_ASCII));
+        if (!compressed) {
+            ByteBuffer decoded = Base64.getDecoder().decode(ByteBuffer.wrap(body, offset, end - offset));
+            if (decoded.position() == 0 && decoded.remaining() == decoded.array().length) {
+                return decoded.array();
+            }
+            byte[] res = new byte[decoded.remaining()];
+            decoded.get(res);
+            return res;
+        }
+
+        int separator = offset + tagLength;
+        while (separator < end && body[separator] != FIELD_SEPARATOR) {
+            separator++;
+        }
+        if (separator == end) {
+            throw new IllegalArgumentException("Compressed payload has no length field");
+        }
+        int rawLength = Integer.parseInt(new String(body, offset + tagLength, separator - offset - tagLength, StandardCharsets.US_ASCII));
+        int start = separator + 1;
+        long maxLength = Math.min(MAX_RAW_LENGTH, (long) (end - start) / 4 * 3 * MAX_DEFLATE_RATIO);
+        if (rawLength < 0 || rawLength > maxLength) {
+            throw new IllegalArgumentException("Compressed payload claims " + rawLength + " bytes");
+        }
+        PooledBuffer staging = BufferPool.acquire((end - start) / 4 * 3 + 3);
+        try {
+            fromBase64(body, start, end, staging.buffer());
+            return inflate(staging.buffer(), rawLength);
+        } finally {
+            staging.release();
+        }
+    }
+
+    /**
+     * Decides whether a payload is worth compressing, based on its size and on how well a sample
+     * from its middle compresses. Already compressed formats such as JPEG fail the sample test
+     * cheaply and are sent as they are.
+     *
+     * @param payload The raw payload bytes.
+     * @return true if the payload should be compressed, otherwise false.
+     */
+    private static boolean shouldCompress(byte[] payload) {
+        if (!ENABLED || payload.length < MIN_COMPRESS_SIZE || payload.length > MAX_RAW_LENGTH) {
+            return false;
+        }
+        int sampleLength = Math.min(SAMPLE_SIZE, payload.length);
+        int sampleOffset = (payload.length - sampleLength) / 2;
+        PooledBuffer sample = deflate(payload, sampleOffset, sampleLength, (int) (sampleLength * MAX_SAMPLE_RATIO));
+        if (sample == null) {
+            return false;
+        }
+        sample.release();
+        return true;
+    }
+
+    /**
+     * Compresses a region of a byte array with the calling thread's deflater into a pooled buffer.
+     *
+     * @param data   The source array.
+     * @param offset The start of the region.
+     * @param length The length of the region.
+     * @param limit  The largest acceptable compressed size.
+     * @return A pooled buffer holding the compressed bytes, ready to be read, or null if the
+     *         compressed form would exceed the limit.
+     */
+    private static PooledBuffer deflate(byte[] data, int offset, int length, int limit) {
+        Deflater deflater = DEFLATER.get();
+        PooledBuffer out = BufferPool.acquire(limit);
+        ByteBuffer buffer = out.buffer();
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!buffer.hasRemaining()) {
+                    out.release();
+                    return null;
+                }
+                deflater.deflate(buffer);
+            }
+        } finally {
+            deflater.reset();
+        }
+        buffer.flip();
+        return out;
+    }
+
+    /**
+     * Decompresses a payload with the calling thread's inflater.
+     *
+     * @param data      The compressed bytes, ready to be read.
+     * @param rawLength The length of the payload before compression.
+     * @return The decompressed bytes.
+     */
+    private static byte[] inflate(ByteBuffer data, int rawLength) {
+        Inflater inflater = INFLATER.get();
+        byte[] raw = new byte[rawLength];
+        try {
+            inflater.setInput(data);
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, rawLength - n);
+                if (read == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("Truncated compressed payload");
+                }
+                if (read == 0 && inflater.needsDictionary()) {
+                    throw new IllegalArgumentException("Compressed payload needs a preset dictionary");
+                }
+                n += read;
+            }
+            if (n != rawLength) {
+                throw new IllegalArgumentException("Compressed payload inflates to " + n + " bytes, expected " + rawLength);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupted compressed payload", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Base64-encodes the contents of a buffer behind an ASCII header, streaming through the
+     * calling thread's chunk so that the only array allocated is the result.
+     *
+     * @param header The header to place before the encoded bytes.
+     * @param src    The bytes to encode, ready to be read.
+     * @return The header followed by the Base64 text.
+     */
+    private static byte[] toBase64(String header, ByteBuffer src) {
+        byte[] out = new byte[header.length() + (src.remaining() + 2) / 3 * 4];
+        System.arraycopy(header.getBytes(StandardCharsets.US_ASCII), 0, out, 0, header.length());
+        byte[] chunk = CHUNK.get();
+        try (OutputStream encoder = Base64.getEncoder().wrap(new ArraySink(out, header.length()))) {
+            while (src.hasRemaining()) {
+                int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                encoder.write(chunk, 0, n);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error encoding payload", e); // cannot happen for an array sink
+        }
+        return out;
+    }
+
+    /**
+     * Base64-decodes the tail of a message body into a buffer, streaming through the calling
+     * thread's chunk.
+     *
+     * @param body  The message body.
+     * @param start The index at which the Base64 text starts.
+     * @param end   The index just past the Base64 text.
+     * @param dst   The buffer to fill; it is flipped and ready to be read on return.
+     */
+    private static void fromBase64(byte[] body, int start, int end, ByteBuffer dst) {
+        byte[] chunk = CHUNK.get();
+        try (InputStream decoder = Base64.getDecoder().wrap(new ByteArrayInputStream(body, start, end - start))) {
+            int n;
+            while ((n = decoder.read(chunk)) > 0) {
+                dst.put(chunk, 0, n);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupted compressed payload", e);
+        }
+        dst.flip();
+    }
+
+    /**
+     * An output stream that writes into a preallocated array.
+     */
+    private static class ArraySink extends OutputStream {
+
+        private final byte[] array;
+        private int position;
+
+        ArraySink(byte[] array, int position) {
+            this.array = array;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) {
+            array[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, array, position, len);
+            position += len;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the images of in-flight transactions within a global heap budget. Every image is already
+ * durable in the first record of its transaction log, so an image can be dropped from the heap at
+ * any time after that record is written and paged back from the log when a retransmit or recovery
+ * needs it. Images are pinned while their prepare messages are being built; unpinned images are
+ * evicted least recently used first whenever the resident total exceeds the budget.
+ *
+ * Commits queued in the {@link CommitScheduler} behind a conflicting transaction have no log yet,
+ * so their images cannot be evicted; they are held against the budget until the commit starts or
+ * is dropped, and push out resident images instead.
+ *
+ * The images are split by key into as many partitions as the coordinator has shards, each with
+ * its own lock and an equal share of the budget, so shards paging images in and out do not
+ * contend.
+ */
+public class PayloadManager {
+
+    private static final long BUDGET = Long.getLong("payloadBudget", 256L * 1024 * 1024); // bytes
+    private static final Partition[] partitions = new Partition[Integer.getInteger("shards", Runtime.getRuntime().availableProcessors())];
+
+    static {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(BUDGET / partitions.length);
+        }
+    }
+
+    /**
+     * Registers the image of a composite. The image stays pinned in memory until
+     * {@link #unpin(String)} is called.
+     *
+     * @param id     The payload key of the composite.
+     * @param img    The image data, or null if it is only available from the blob.
+     * @param blob   The log file whose first record holds the encoded images.
+     * @param offset The number of characters before the payloads in that record.
+     * @param record The position of this image among the ';'-separated payloads of that record.
+     */
+    public static void put(String id, byte[] img, File blob, int offset, int record) {
+        of(id).put(id, img, new Location(blob, offset, record));
+    }
+
+    /**
+     * Counts the images of a queued commit against the budget until {@link #unhold(String)} is
+     * called.
+     *
+     * @param id    The transaction ID.
+     * @param bytes The total size of the commit's images.
+     */
+    public static void hold(String id, long bytes) {
+        of(id).hold(id, bytes);
+    }
+
+    /**
+     * Stops counting the images of a queued commit, once it has started or been dropped.
+     *
+     * @param id The transaction ID.
+     */
+    public static void unhold(String id) {
+        of(id).unhold(id);
+    }
+
+    /**
+     * Allows the image of a composite to be evicted, typically once its prepares have been sent.
+     *
+     * @param id The payload key of the composite.
+     */
+    public static void unpin(String id) {
+        of(id).unpin(id);
+    }
+
+    /**
+     * Returns the image of a composite, paging it back from its blob if it was evicted.
+     *
+     * @param id The payload key of the composite.
+     * @return The image data, or null if it is unknown or cannot be read.
+     */
+    public static byte[] get(String id) {
+        return of(id).get(id);
+    }
+
+    /**
+     * Drops the image of a composite from the heap. The image can still be paged back.
+     *
+     * @param id The payload key of the composite.
+     */
+    public static void release(String id) {
+        of(id).release(id);
+    }
+
+    /**
+     * Forgets the image of a finished composite entirely.
+     *
+     * @param id The payload key of the composite.
+     */
+    public static void remove(String id) {
+        of(id).remove(id);
+    }
+
+    /**
+     * Returns the partition holding a composite's image.
+     *
+     * @param id The payload key of the composite.
+     * @return The partition.
+     */
+    private static Partition of(String id) {
+        return partitions[Math.floorMod(id.hashCode(), partitions.length)];
+    }
+
+    /**
+     * Reads an image back from the first record of a transaction log. The payloads start at the
+     * known offset and end at the next '-', which neither Base64 nor the compression header
+     * contains, so composite names containing '-' do not shift them.
+     *
+     * @param location Where the image lies in the log.
+     * @return The image data, or null if it cannot be read.
+     */
+    private static byte[] load(Location location) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(location.blob))) {
+            String line = reader.readLine();
+            if (line != null) {
+                int end = line.indexOf('-', location.offset);
+                String payloads = line.substring(location.offset, end < 0 ? line.length() : end);
+                return PayloadCodec.decode(payloads.split(";")[location.record]);
+            }
+        } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            e.printStackTrace();
+            System.out.println("Server: Error while loading image from " + location.blob.getPath());
+        }
+        return null;
+    }
+
+    /**
+     * The place of an image in the first record of its transaction log.
+     */
+    private static class Location {
+
+        private final File blob;
+        private final int offset;
+        private final int record;
+
+        Location(File blob, int offset, int record) {
+            this.blob = blob;
+            this.offset = offset;
+            this.record = record;
+        }
+    }
+
+    /**
+     * The images of one partition and their share of the budget.
+     */
+    private static class Partition {
+
+        private final long budget;
+        private final LinkedHashMap<String, byte[]> resident = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, Location> locations = new HashMap<>();
+        private final Set<String> pinned = new HashSet<>();
+        private final Map<String, Long> held = new HashMap<>(); // transaction id -> bytes of a queued commit
+        private long residentBytes = 0;
+        private long heldBytes = 0;
+
+        Partition(long budget) {
+            this.budget = budget;
+        }
+
+        synchronized void put(String id, byte[] img, Location location) {
+            locations.put(id, location);
+            if (img != null) {
+                pinned.add(id);
+                admit(id, img);
+            }
+        }
+
+        synchronized void hold(String id, long bytes) {
+            Long old = held.put(id, bytes);
+            heldBytes += bytes - (old == null ? 0 : old);
+            evict();
+        }
+
+        synchronized void unhold(String id) {
+            Long bytes = held.remove(id);
+            if (bytes != null) {
+                heldBytes -= bytes;
+            }
+        }
+
+        synchronized void unpin(String id) {
+            pinned.remove(id);
+            evict();
+        }
+
+        byte[] get(String id) {
+            Location location;
+            synchronized (this) {
+                byte[] img = resident.get(id);
+                if (img != null) {
+                    return img;
+                }
+                location = locations.get(id);
+                if (location == null) {
+                    return null;
+                }
+            }
+
+            byte[] img = load(location);
+            if (img != null) {
+                synchronized (this) {
+                    if (locations.containsKey(id) && !resident.containsKey(id)) {
+                        admit(id, img);
+                    }
+                }
+            }
+            return img;
+        }
+
+        synchronized void release(String id) {
+            pinned.remove(id);
+            byte[] img = resident.remove(id);
+            if (img != null) {
+                residentBytes -= img.length;
+            }
+        }
+
+        synchronized void remove(String id) {
+            release(id);
+            locations.remove(id);
+        }
+
+        /**
+         * Adds an image to the resident set and evicts others if the budget is exceeded.
+         *
+         * @param id  The payload key of the composite.
+         * @param img The image data.
+         */
+        private void admit(String id, byte[] img) {
+            byte[] old = resident.put(id, img);
+            if (old != null) {
+                residentBytes -= old.length;
+            }
+            residentBytes += img.length;
+            evict();
+        }
+
+        /**
+         * Evicts unpinned images, least recently used first, until the resident total and the
+         * held images of queued commits fit the budget.
+         */
+        private void evict() {
+            Iterator<Map.Entry<String, byte[]>> it = resident.entrySet().iterator();
+            while (residentBytes + heldBytes > budget && it.hasNext()) {
+                Map.Entry<String, byte[]> entry = it.next();
+                if (!pinned.contains(entry.getKey())) {
+                    residentBytes -= entry.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+    }
+}
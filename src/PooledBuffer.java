@@ -0,0 +1,91 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted handle on a direct buffer from {@link BufferPool}. The buffer returns to the
+ * pool when the last reference is released. A handle that becomes unreachable while still holding
+ * references is reported as a leak, and its buffer is recycled so the pool does not shrink. Where
+ * a leaked buffer was acquired is only known with -DleakCheck=true, since recording it costs a
+ * stack walk on every acquire.
+ */
+public class PooledBuffer {
+
+    private static final boolean LEAK_CHECK = Boolean.getBoolean("leakCheck");
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final ByteBuffer buffer;
+    private final State state;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * Wraps a buffer taken from the pool with a single reference.
+     *
+     * @param buffer The underlying direct buffer.
+     */
+    PooledBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.state = new State(buffer, LEAK_CHECK ? new Throwable("buffer acquired here").getStackTrace() : null);
+        this.cleanable = cleaner.register(this, state);
+    }
+
+    /**
+     * Returns the underlying buffer. It must not be used after the last reference is released.
+     *
+     * @return The direct buffer.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Adds a reference, for example when the buffer is handed to another thread.
+     *
+     * @return This handle.
+     */
+    public PooledBuffer retain() {
+        if (state.refs.getAndIncrement() <= 0) {
+            state.refs.decrementAndGet();
+            throw new IllegalStateException("Buffer already released");
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference and returns the buffer to the pool when none are left.
+     */
+    public void release() {
+        int refs = state.refs.decrementAndGet();
+        if (refs == 0) {
+            cleanable.clean(); // recycles the buffer without reporting a leak
+        } else if (refs < 0) {
+            throw new IllegalStateException("Buffer released too many times");
+        }
+    }
+
+    /**
+     * The part of a handle that outlives it, so that the cleaner can tell a normal release from a
+     * leak and still recycle the buffer.
+     */
+    private static class State implements Runnable {
+
+        private final ByteBuffer buffer;
+        private final StackTraceElement[] acquiredAt; // null unless leak checking is on
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        State(ByteBuffer buffer, StackTraceElement[] acquiredAt) {
+            this.buffer = buffer;
+            this.acquiredAt = acquiredAt;
+        }
+
+        @Override
+        public void run() {
+            if (refs.get() > 0) {
+                String site = acquiredAt == null ? "unknown (run with -DleakCheck=true)"
+                        : acquiredAt.length > 2 ? acquiredAt[2].toString() : "unknown";
+                System.out.println("BufferPool: leaked buffer of " + buffer.capacity() + " bytes acquired at " + site);
+            }
+            BufferPool.recycle(buffer);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Deletes the source files of committed transactions in the background. A UserNode journals a
+ * commit before its files are gone, acknowledges it, and hands the files here, so unlinking large
+ * images never holds up a reply or the lock table. The reclaimer thread takes everything queued
+ * since its last round, deletes it in one batch, and completes the futures the callers wait on to
+ * release their locks.
+ *
+ * Nothing is made durable here; a node that fails with deletes outstanding finds them in its
+ * journal and queues them again, and deleting a file twice is harmless.
+ */
+public class Reclaimer {
+
+    private List<Job> queue = new ArrayList<>();
+
+    /**
+     * Constructs the reclaimer and starts its thread.
+     */
+    public Reclaimer() {
+        Thread reclaimer = new Thread(this::reclaim, "reclaimer");
+        reclaimer.setDaemon(true);
+        reclaimer.start();
+    }
+
+    /**
+     * Queues files for deletion.
+     *
+     * @param files The file paths to delete.
+     * @return A future completed once every file has been deleted.
+     */
+    public synchronized CompletableFuture<Void> delete(String[] files) {
+        Job job = new Job(files);
+        queue.add(job);
+        notifyAll();
+        return job.future;
+    }
+
+    /**
+     * Deletes queued files for as long as the node is up, one batch per round.
+     */
+    private void reclaim() {
+        while (true) {
+            List<Job> batch;
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        System.out.println("Reclaimer interrupted: " + e.getMessage());
+                        return;
+                    }
+                }
+                batch = queue;
+                queue = new ArrayList<>();
+            }
+
+            for (Job job : batch) {
+                for (String file : job.files) {
+                    new File(file).delete();
+                }
+            }
+            for (Job job : batch) {
+                job.future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * The files of one transaction waiting to be deleted.
+     */
+    private static class Job {
+
+        private final String[] files;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Job(String[] files) {
+            this.files = files;
+        }
+    }
+}
@@ -3,10 +3,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -29,36 +29,64 @@ public class RecoveryManager {
     }
 
     /**
-     * Retrieves transactions that need to be recovered from log files. This method scans log files
-     * in a predefined directory, interprets their content, and reconstructs transaction states.
+     * Retrieves transactions that need to be recovered from log files, interpreting their content
+     * and reconstructing transaction states. With a snapshot, only the logs listed in the
+     * manifests written since it are read, and every other transaction of the snapshot is
+     * restored from it, so the cost of a restart depends on the traffic since the last snapshot
+     * rather than on the number of logs. Without one, every log in the logs directory is read.
+     * Images are not loaded; a transaction reads its image back from its log only if it needs it.
      *
      * @return A concurrent hash map of transaction IDs to their corresponding Transaction objects that need recovery.
      */
     public ConcurrentHashMap<String, Transaction> getTransactions2Recover() {
         ConcurrentHashMap<String, Transaction> res = new ConcurrentHashMap<>();
-        File logsDir = new File("./logs");
-        File[] logFiles = logsDir.listFiles();
+        Snapshot snapshot = Snapshot.load();
+        Set<String> touched = snapshot == null ? null : Log.readManifests();
 
-        if (logFiles == null) {
-            return null;
+        if (touched == null) {
+            File[] logFiles = new File("./logs").listFiles();
+            if (logFiles == null) {
+                return null;
+            }
+            for (File logFile : logFiles) {
+                String transactionId = logFile.getName().split("\\.")[0];
+                res.put(transactionId, replay(transactionId, logFile));
+            }
+            return res;
         }
 
-        for (File logFile : logFiles) {
-            List<String> commitContent = parseLogParam(logFile);
-            String transactionId = logFile.getName().split("\\.")[0];
-            Transaction.Phase phase = parseLogStatus(logFile, transactionId);
-            String fileName = commitContent.get(0);
-            byte[] img = Base64.getDecoder().decode(commitContent.get(1));
-            String[] sources = commitContent.get(2).split(",");
-
-            Transaction t = new Transaction(transactionId, fileName, img, sources, PL);
-            t.setPhase(phase);
-            res.put(transactionId, t);
+        for (String transactionId : snapshot.getIDs()) {
+            if (snapshot.covers(transactionId, touched)) {
+                res.put(transactionId, snapshot.restore(transactionId, PL));
+            }
+        }
+        for (String transactionId : touched) {
+            File logFile = new File("./logs/" + transactionId + ".log");
+            if (logFile.exists()) { // otherwise the transaction finished and its log was deleted
+                res.put(transactionId, replay(transactionId, logFile));
+            }
         }
-
         return res;
     }
 
+    /**
+     * Rebuilds a transaction from its log.
+     *
+     * @param transactionId The transaction ID.
+     * @param logFile       The transaction's log file.
+     * @return The transaction, in the last phase its log records.
+     */
+    private Transaction replay(String transactionId, File logFile) {
+        List<String> commitContent = parseLogParam(logFile);
+        Transaction.Phase phase = parseLogStatus(logFile, transactionId);
+        String[] fileNames = commitContent.get(0).split(";");
+        String[][] sources = Snapshot.splitGroups(commitContent.get(2));
+
+        Transaction t = new Transaction(transactionId, fileNames, null, sources, PL);
+        t.setPhase(phase);
+        return t;
+    }
+
     /**
      * Initiates the recovery process for a given transaction based on its last known phase.
      * Depending on the phase, it may re-ask for votes, commit, or abort the transaction.
@@ -71,6 +99,12 @@ public class RecoveryManager {
 
         switch (phase) {
             case PREPARE:
+                if (t.isOnePhase()) {
+                    t.retryOnePhase(); // the participant may have committed, ask for the outcome
+                } else {
+                    t.abort();
+                }
+                break;
             case ABORT:
                 t.abort();
                 break;
@@ -83,62 +117,6 @@ public class RecoveryManager {
         }
     }
 
-    /**
-     * Reads a log file to find the last prepare response related to a specific transaction.
-     * This helps in determining the state of the transaction during the prepare phase.
-     *
-     * @param logFile The log file to be read.
-     * @param id      The transaction ID to search for in the log file.
-     * @return The last prepare response found in the log file, or null if no such response exists.
-     */
-    public String getPrepareReply(File logFile, String id) {
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(logFile));
-            String line;
-            String prepareLine = null;
-            while ((line = reader.readLine()) != null) {
-                if ((line.contains("Yes") || line.contains("No")) && line.contains(id)) {
-                    prepareLine = line;
-                    reader.close();
-                    break;
-                }
-            }
-            return prepareLine;
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println("Error reading log file: " + logFile.getName());
-        }
-        return null;
-    }
-
-    /**
-     * Reads a log file to find the last decision response related to a specific transaction.
-     * This is used to confirm whether all nodes acknowledged the final decision of the transaction.
-     *
-     * @param logFile The log file to be read.
-     * @param id      The transaction ID to search for in the log file.
-     * @return The last decision response found in the log file, or null if no such response exists.
-     */
-    public String getDecision(File logFile, String id) {
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(logFile));
-            String line;
-            String ackLine = null;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("ACK") && line.contains(id)) {
-                    ackLine = line;
-                    reader.close();
-                    break;
-                }
-            }
-            return ackLine;
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println("Error reading log file: " + logFile.getName());
-        }
-        return null;
-    }
-
     /**
      * Parses a log file to determine the last known phase of a transaction based on log entries.
      *
@@ -184,7 +162,8 @@ public class RecoveryManager {
 
     /**
      * Parses the initial parameters of a transaction from a log file.
-     * These parameters typically include the file name, image data, and source nodes.
+     * These parameters typically include the file name, image data, and source nodes. For a batch
+     * transaction each parameter holds one ';'-separated entry per composite.
      *
      * @param logFile The file to parse the parameters from.
      * @return A list of strings representing the transaction parameters.
@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks one subtree of a hierarchical transaction on the UserNode acting as its relay. The relay
+ * forwards the coordinator's prepare and decision to the other members of the subtree, collects
+ * their replies together with its own, and answers the coordinator with a single combined vote or
+ * ACK.
+ */
+public class RelayGroup {
+
+    private final String transactionId;
+    private final String coordinator;
+    private final Map<String, String[]> members;
+    private final Map<String, Boolean> votes = new HashMap<>();
+    private final Set<String> acks = new HashSet<>();
+    private boolean voted = false;
+    private boolean acked = false;
+
+    /**
+     * Constructs a relay group from the subtree description sent by the coordinator.
+     *
+     * @param transactionId The transaction ID.
+     * @param coordinator   The address to send combined replies to.
+     * @param subtree       The subtree as "node=file,file;node=file", with the relay first.
+     */
+    public RelayGroup(String transactionId, String coordinator, String subtree) {
+        this.transactionId = transactionId;
+        this.coordinator = coordinator;
+        this.members = new LinkedHashMap<>();
+        for (String member : subtree.split(";")) {
+            String[] parts = member.split("=", 2);
+            members.put(parts[0], parts[1].split(","));
+        }
+    }
+
+    /**
+     * Returns the files a member of the subtree contributes.
+     *
+     * @param node The member node.
+     * @return The member's files.
+     */
+    public String[] getFiles(String node) {
+        return members.get(node);
+    }
+
+    /**
+     * Returns the members other than the relay itself.
+     *
+     * @param relay The relay node.
+     * @return The children of the relay.
+     */
+    public List<String> getChildren(String relay) {
+        List<String> children = new ArrayList<>(members.keySet());
+        children.remove(relay);
+        return children;
+    }
+
+    /**
+     * Returns the children that have not yet acknowledged the decision.
+     *
+     * @param relay The relay node.
+     * @return The children still to acknowledge.
+     */
+    public synchronized List<String> getUnackedChildren(String relay) {
+        List<String> children = getChildren(relay);
+        children.removeAll(acks);
+        return children;
+    }
+
+    public String getCoordinator() {
+        return coordinator;
+    }
+
+    /**
+     * Records a member's vote and decides whether the combined vote can be sent. A single No is
+     * enough to answer No at once; Yes needs every member.
+     *
+     * @param node The member that voted.
+     * @param yes  Whether the member voted Yes.
+     * @return The combined reply to send to the coordinator, or null if it is not ready or was
+     *         already sent.
+     */
+    public synchronized String recordVote(String node, boolean yes) {
+        if (voted || !members.containsKey(node)) {
+            return null;
+        }
+        votes.put(node, yes);
+        if (!yes) {
+            voted = true;
+            return transactionId + ":No";
+        }
+        if (votes.size() == members.size()) {
+            voted = true;
+            return transactionId + ":Yes";
+        }
+        return null;
+    }
+
+    /**
+     * Gives up on members that have not voted by the relay's deadline.
+     *
+     * @return A combined No to send to the coordinator, or null if the vote was already sent.
+     */
+    public synchronized String timeoutVote() {
+        if (voted) {
+            return null;
+        }
+        voted = true;
+        return transactionId + ":No";
+    }
+
+    /**
+     * Records a member's ACK of a commit decision.
+     *
+     * @param node The member that acknowledged.
+     * @return The combined ACK to send to the coordinator once every member has acknowledged,
+     *         otherwise null.
+     */
+    public synchronized String recordAck(String node) {
+        if (!members.containsKey(node)) {
+            return null;
+        }
+        acks.add(node);
+        if (!acked && acks.size() == members.size()) {
+            acked = true;
+            return transactionId + ":ACK";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Turns the traffic recorded by {@link Capture} into a Project4 script, and measures a run, so that
+ * a recorded workload can be rerun against a new build to catch performance regressions.
+ *
+ * "java Replay script <test dir> [speed]" reads the capture files of the Server and of every node
+ * under the test directory and prints a script that replays the run: the same commits at the same
+ * times, each link delayed by the median delay measured on it, the links dropped while their sends
+ * went unanswered, and every process killed where its capture of a run ends and started again
+ * ahead of its next START record. A speed above 1 divides every wait and delay, replaying the run
+ * faster than it was recorded, except for the time processes take to come up; the timeouts of the
+ * protocol itself are not scaled.
+ *
+ * "java Replay report <test dir>" reports a run captured with -Dcapture=true: the outcomes of its
+ * commits, their throughput and latency percentiles, and the messages it took. Recording a run,
+ * replaying its script with capture on and reporting both runs compares two builds on one
+ * workload.
+ */
+public class Replay {
+
+    private static final String SERVER = "Server";
+    private static final long STARTUP = 900; // ms from a start command to the process's START record
+    private static final long RESTART_GAP = 2 * STARTUP; // ms; a longer gap was a kill and a later start
+    private static final String COMPOSITES = "composites/"; // where the harness reads the images of a commit
+
+    /**
+     * A message send and whether any receive in the peer's capture matched it.
+     */
+    private static class Send {
+
+        private final long time;
+        private boolean received = false;
+
+        Send(long time) {
+            this.time = time;
+        }
+    }
+
+    public static void main (String args[]) throws Exception {
+        if (args.length < 2 || (!args[0].equals("script") && !args[0].equals("report"))) {
+            throw new Exception("Need args: script <test dir> [speed] | report <test dir>");
+        }
+        Map<String, List<Capture.Record>> captures = load(new File(args[1]));
+        if (!captures.containsKey(SERVER)) {
+            throw new Exception("No " + SERVER + "/" + Capture.FILE_NAME + " under " + args[1]);
+        }
+        if (args[0].equals("script")) {
+            script(captures, args.length > 2 ? Double.parseDouble(args[2]) : 1.0);
+        } else {
+            report(captures);
+        }
+    }
+
+    /**
+     * Reads the capture files under the test directory. The harness leaves copies of a process's
+     * directory behind, as fsync snapshots and as the trash of a restart that rolled the directory
+     * back to its last snapshot, so the history of a process is spread over several files that
+     * overlap. Files are grouped by the process named in their first START record, and the records
+     * of each process are merged without duplicates.
+     *
+     * @param dir The test directory.
+     * @return The records of each process in time order, by process name.
+     * @throws IOException If a capture file cannot be read.
+     */
+    private static Map<String, List<Capture.Record>> load(File dir) throws IOException {
+        Map<String, Map<String, Capture.Record>> merged = new TreeMap<>();
+        File[] copies = dir.listFiles(File::isDirectory);
+        if (copies == null) {
+            return new TreeMap<>();
+        }
+        for (File copy : copies) {
+            File file = new File(copy, Capture.FILE_NAME);
+            if (!file.isFile()) {
+                continue;
+            }
+            List<Capture.Record> records = Capture.read(file);
+            if (records.isEmpty() || records.get(0).kind != Capture.START) {
+                continue;
+            }
+            Map<String, Capture.Record> process = merged.computeIfAbsent(records.get(0).peer, k -> new HashMap<>());
+            for (Capture.Record r : records) {
+                process.putIfAbsent(r.kind + ":" + r.time + ":" + r.peer + ":" + r.size + ":" + r.crc + ":" + r.id, r);
+            }
+        }
+        Map<String, List<Capture.Record>> captures = new TreeMap<>();
+        for (Map.Entry<String, Map<String, Capture.Record>> e : merged.entrySet()) {
+            List<Capture.Record> records = new ArrayList<>(e.getValue().values());
+            records.sort(Comparator.comparingLong(r -> r.time));
+            captures.put(e.getKey(), records);
+        }
+        return captures;
+    }
+
+    /**
+     * Matches every send with a receive of the same body on the same link, in order.
+     *
+     * @param captures The records of each process.
+     * @param delays   Filled with the delays of the received sends of each link, keyed by "src dst".
+     * @return The sends of each link, keyed by "src dst", each marked received or not.
+     */
+    private static Map<String, List<Send>> matchSends(Map<String, List<Capture.Record>> captures,
+                                                      Map<String, List<Long>> delays) {
+        Map<String, List<Send>> links = new TreeMap<>();
+        Map<String, ArrayDeque<Send>> pending = new HashMap<>();
+        for (Map.Entry<String, List<Capture.Record>> e : captures.entrySet()) {
+            for (Capture.Record r : e.getValue()) {
+                if (r.kind == Capture.SEND && captures.containsKey(r.peer)) {
+                    Send send = new Send(r.time);
+                    links.computeIfAbsent(e.getKey() + " " + r.peer, k -> new ArrayList<>()).add(send);
+                    pending.computeIfAbsent(e.getKey() + ":" + r.peer + ":" + r.size + ":" + r.crc,
+                            k -> new ArrayDeque<>()).add(send);
+                }
+            }
+        }
+        for (Map.Entry<String, List<Capture.Record>> e : captures.entrySet()) {
+            for (Capture.Record r : e.getValue()) {
+                if (r.kind != Capture.RECEIVE) {
+                    continue;
+                }
+                ArrayDeque<Send> sends = pending.get(r.peer + ":" + e.getKey() + ":" + r.size + ":" + r.crc);
+                Send send = sends == null ? null : sends.poll();
+                if (send != null) {
+                    send.received = true;
+                    delays.computeIfAbsent(r.peer + " " + e.getKey(), k -> new ArrayList<>()).add(r.time - send.time);
+                }
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Prints a Project4 script replaying the captured run.
+     *
+     * @param captures The records of each process.
+     * @param speed    How many times faster than recorded to replay.
+     */
+    private static void script(Map<String, List<Capture.Record>> captures, double speed) {
+        List<Capture.Record> server = captures.get(SERVER);
+        long start = server.get(0).time;
+        long end = server.get(server.size() - 1).time;
+        List<String> nodes = new ArrayList<>(captures.keySet());
+        nodes.remove(SERVER);
+
+        Map<String, List<Long>> delays = new HashMap<>();
+        Map<String, List<Send>> links = matchSends(captures, delays);
+        Map<String, Long> linkDelay = new TreeMap<>();
+        for (Map.Entry<String, List<Long>> e : delays.entrySet()) {
+            linkDelay.put(e.getKey(), Math.max(Math.round(percentile(e.getValue(), 50) / speed), 0));
+        }
+
+        /* timed commands, in time order; a TreeMap keeps commands at the same time in insertion order */
+        TreeMap<Long, List<String>> timeline = new TreeMap<>();
+        for (Map.Entry<String, List<Send>> e : links.entrySet()) {
+            List<Send> sends = e.getValue();
+            long restore = linkDelay.getOrDefault(e.getKey(), 0L);
+            for (int i = 0; i < sends.size(); i++) {
+                if (sends.get(i).received) {
+                    continue;
+                }
+                int last = i;
+                while (last + 1 < sends.size() && !sends.get(last + 1).received) {
+                    last++;
+                }
+                if (sends.get(i).time <= end) {
+                    at(timeline, sends.get(i).time - 1, "setDelay " + e.getKey() + " -1 # " + (last - i + 1) + " sends lost");
+                    at(timeline, sends.get(last).time + 1, "setDelay " + e.getKey() + " " + restore);
+                }
+                i = last;
+            }
+        }
+        TreeMap<Long, List<String>> restarts = new TreeMap<>(); // quick node restarts, by crash time
+        for (Map.Entry<String, List<Capture.Record>> e : captures.entrySet()) {
+            String process = e.getKey();
+            Long previous = null;
+            for (Capture.Record r : e.getValue()) {
+                if (r.kind == Capture.START && previous != null) {
+                    /* the crash came after the last record of the previous run, and the harness takes a while to start a process */
+                    long crash = previous + 1;
+                    if (process.equals(SERVER)) {
+                        at(timeline, crash, "kill " + SERVER);
+                        at(timeline, Math.max(r.time - STARTUP, crash), "start " + SERVER);
+                    } else if (r.time - crash < RESTART_GAP) {
+                        restarts.computeIfAbsent(crash, t -> new ArrayList<>()).add(process);
+                    } else {
+                        at(timeline, crash, "kill " + process);
+                        at(timeline, Math.max(r.time - STARTUP, crash), "start " + process);
+                    }
+                } else if (r.kind == Capture.SUBMIT && r.filename.contains(";")) {
+                    at(timeline, r.time, "# batch commit of " + r.filename + " is not replayable from a script");
+                } else if (r.kind == Capture.SUBMIT) {
+                    at(timeline, r.time, "commit " + COMPOSITES + r.filename + " " + String.join(" ", r.sources));
+                }
+                previous = r.time;
+            }
+        }
+        /* nodes whose last records fall within a heartbeat of each other crashed together */
+        List<String> group = new ArrayList<>();
+        long first = 0;
+        long last = 0;
+        for (Map.Entry<Long, List<String>> e : restarts.entrySet()) {
+            if (!group.isEmpty() && e.getKey() - first > FailureDetector.HEARTBEAT_INTERVAL) {
+                at(timeline, last, "restart " + String.join(" ", group));
+                group.clear();
+            }
+            if (group.isEmpty()) {
+                first = e.getKey();
+            }
+            group.addAll(e.getValue());
+            last = e.getKey();
+        }
+        if (!group.isEmpty()) {
+            at(timeline, last, "restart " + String.join(" ", group));
+        }
+
+        System.out.println("# Replay of a captured run at " + speed + "x speed.");
+        System.out.println();
+        System.out.println("setDelay * * 0 # links without traffic");
+        for (Map.Entry<String, Long> e : linkDelay.entrySet()) {
+            System.out.println("setDelay " + e.getKey() + " " + e.getValue() + " # median of " + delays.get(e.getKey()).size());
+        }
+        System.out.println("start " + SERVER + " " + String.join(" ", nodes));
+        /* the processes take as long to come up at any speed, so the run up to the first command is not scaled */
+        long now = start;
+        if (!timeline.isEmpty()) {
+            now = Math.max(timeline.firstKey(), start);
+            System.out.println("wait " + (now - start + STARTUP) + " # until the captured run's first command");
+        }
+        boolean starting = false;
+        for (Map.Entry<Long, List<String>> e : timeline.entrySet()) {
+            long time = Math.max(e.getKey(), start);
+            long gap = time - now;
+            long unscaled = starting ? Math.min(gap, STARTUP) : 0; // nor is the time a restarted process takes to come up
+            long wait = unscaled + Math.round((gap - unscaled) / speed);
+            if (wait > 0) {
+                System.out.println("wait " + wait);
+                now = time;
+                starting = false;
+            }
+            for (String command : e.getValue()) {
+                System.out.println(command);
+                starting |= command.startsWith("start ") || command.startsWith("restart ");
+            }
+        }
+        System.out.println("wait " + Math.round((end - now) / speed + 1000) + " # until the captured run ended");
+    }
+
+    private static void at(TreeMap<Long, List<String>> timeline, long time, String command) {
+        timeline.computeIfAbsent(time, t -> new ArrayList<>()).add(command);
+    }
+
+    /**
+     * Prints the outcomes, throughput and latencies of the captured run's commits, and the
+     * messages it took.
+     *
+     * @param captures The records of each process.
+     */
+    private static void report(Map<String, List<Capture.Record>> captures) {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        int submitted = 0;
+        Map<String, List<Long>> latencies = new TreeMap<>();
+        for (Capture.Record r : captures.get(SERVER)) {
+            if (r.kind == Capture.SUBMIT) {
+                submitted++;
+                first = Math.min(first, r.time);
+            } else if (r.kind == Capture.OUTCOME) {
+                latencies.computeIfAbsent(r.outcome, k -> new ArrayList<>()).add((long) r.latency);
+                last = Math.max(last, r.time);
+            }
+        }
+
+        int decided = latencies.values().stream().mapToInt(List::size).sum();
+        System.out.println("commits: " + submitted + " submitted, " + decided + " decided");
+        if (decided > 0) {
+            long span = Math.max(last - first, 1);
+            int committed = latencies.getOrDefault(CommitTracker.Outcome.COMMITTED.name(), List.of()).size();
+            System.out.println(String.format("throughput: %.2f commits/s over %d ms", committed * 1000.0 / span, span));
+        }
+        for (Map.Entry<String, List<Long>> e : latencies.entrySet()) {
+            List<Long> l = e.getValue();
+            System.out.println(String.format("%s: %d, latency p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, max %.0f ms",
+                    e.getKey(), l.size(), percentile(l, 50), percentile(l, 90), percentile(l, 99), percentile(l, 100)));
+        }
+
+        Map<String, List<Long>> delays = new HashMap<>();
+        Map<String, List<Send>> links = matchSends(captures, delays);
+        long sent = 0;
+        long lost = 0;
+        long bytes = 0;
+        for (List<Send> sends : links.values()) {
+            sent += sends.size();
+            lost += sends.stream().filter(s -> !s.received).count();
+        }
+        for (List<Capture.Record> records : captures.values()) {
+            bytes += records.stream().filter(r -> r.kind == Capture.SEND).mapToLong(r -> r.size).sum();
+        }
+        List<Long> all = new ArrayList<>();
+        delays.values().forEach(all::addAll);
+        System.out.println(String.format("messages: %d sent, %d bytes, %d not received, delay p50 %.0f ms, p99 %.0f ms",
+                sent, bytes, lost, percentile(all, 50), percentile(all, 99)));
+    }
+
+    /**
+     * Returns a percentile by the nearest-rank method.
+     *
+     * @param values The values, in any order.
+     * @param p      The percentile, from 0 to 100.
+     * @return The percentile, or 0 for no values.
+     */
+    private static double percentile(List<Long> values, double p) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        Long[] sorted = values.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.min(Math.max(rank - 1, 0), sorted.length - 1)];
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Screens the replies of a shard before they are dispatched, so that only the first reply of each
+ * node in each phase reaches its transaction. For every open transaction it keeps one bit per
+ * target node and phase, set once a vote or an ACK from that node has been let through; a repeat,
+ * a reply of a phase the transaction has left, and a reply from a node that is not a target are
+ * dropped without taking the transaction's lock. A one-phase participant's answers to inquiries
+ * only report progress, so they are let through every time while the transaction is undecided.
+ *
+ * Finished transactions are evicted from the shard's table and their IDs go into a Bloom filter,
+ * so a late reply for one of them is recognized and dropped quietly, while a reply for an ID the
+ * shard has never seen is reported. A Bloom hit is only trusted once the table confirms that the
+ * transaction is gone, since a false positive must never drop a reply of a live transaction. The
+ * Bloom filter has two generations, and the older one is discarded whenever the current one
+ * fills up, which bounds its memory and its false positive rate.
+ *
+ * The filter is not thread-safe; it belongs to the shard's receiver thread.
+ */
+public class ReplyFilter {
+
+    private static final int BLOOM_BITS = 1 << 20;
+    private static final int BLOOM_CAPACITY = 100000; // ids per generation, about 1% false positives
+    private static final int BLOOM_HASHES = 7;
+
+    private final HashMap<String, BitSet> seen = new HashMap<>();
+    private BitSet finished = new BitSet(BLOOM_BITS);
+    private BitSet previous = new BitSet(BLOOM_BITS);
+    private int finishedCount = 0;
+
+    /**
+     * Decides whether a reply should be dispatched to its transaction, and records it if so.
+     *
+     * @param transaction The transaction the reply is for.
+     * @param node        The node that sent the reply.
+     * @param res         The reply content, such as "Yes" or "ACK".
+     * @return true for the first reply of the node in the transaction's current phase, otherwise false.
+     */
+    public boolean accept(Transaction transaction, String node, String res) {
+        if (res.equals("Received") || res.equals("Unknown")) { // progress of a one-phase request, may repeat
+            return transaction.getPhase() == Transaction.Phase.PREPARE && transaction.indexOfTarget(node) >= 0;
+        }
+        int phase;
+        if (res.equals("Yes") || res.equals("No") || res.equals("Committed") || res.equals("Aborted")) {
+            phase = 0;
+        } else if (res.equals("ACK")) {
+            phase = 1;
+        } else {
+            return false;
+        }
+
+        Transaction.Phase current = transaction.getPhase();
+        if ((phase == 0) != (current == Transaction.Phase.PREPARE) || current == Transaction.Phase.DONE) {
+            return false; // stale: a vote after the decision, or an ACK before it
+        }
+        int index = transaction.indexOfTarget(node);
+        if (index < 0) {
+            return false;
+        }
+
+        BitSet bits = seen.computeIfAbsent(transaction.getID(), id -> new BitSet());
+        int bit = 2 * index + phase;
+        if (bits.get(bit)) {
+            return false;
+        }
+        bits.set(bit);
+        return true;
+    }
+
+    /**
+     * Records that a transaction has finished and forgets its replies.
+     *
+     * @param transactionId The transaction ID.
+     */
+    public void finish(String transactionId) {
+        seen.remove(transactionId);
+        if (finishedCount == BLOOM_CAPACITY) {
+            previous = finished;
+            finished = new BitSet(BLOOM_BITS);
+            finishedCount = 0;
+        }
+        int h1 = transactionId.hashCode();
+        int h2 = hash2(h1);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            finished.set(Math.floorMod(h1 + i * h2, BLOOM_BITS));
+        }
+        finishedCount++;
+    }
+
+    /**
+     * Checks whether a transaction has probably finished. A false result is certain; a true
+     * result may be a false positive.
+     *
+     * @param transactionId The transaction ID.
+     * @return true if the ID is probably finished, otherwise false.
+     */
+    public boolean isFinished(String transactionId) {
+        return contains(finished, transactionId) || contains(previous, transactionId);
+    }
+
+    private static boolean contains(BitSet bloom, String transactionId) {
+        int h1 = transactionId.hashCode();
+        int h2 = hash2(h1);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            if (!bloom.get(Math.floorMod(h1 + i * h2, BLOOM_BITS))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash2(int h1) {
+        int h = h1 * 0x85ebca6b;
+        return (h ^ (h >>> 13)) | 1; // odd, so the probes cycle through every bit
+    }
+}
@@ -2,42 +2,166 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a server that manages transaction operations in a distributed system.
- * This server handles initiating and recovering transactions, and maintains a map
- * of ongoing transactions. It uses a two-phase commit protocol to ensure data consistency
- * across different nodes involved in a transaction.
+ * This server handles initiating and recovering transactions, and spreads ongoing transactions
+ * over shards by id, each with its own transaction table and threads. It uses a two-phase commit
+ * protocol to ensure data consistency across different nodes involved in a transaction.
  */
 public class Server implements ProjectLib.CommitServing {
 
+    private static final int SHARDS = Integer.getInteger("shards", Runtime.getRuntime().availableProcessors());
+    private static final boolean THREADED = "threaded".equals(System.getProperty("engine"));
+
     private static ProjectLib PL;
-    private static ConcurrentHashMap<String, Transaction> transactionMap = new ConcurrentHashMap<>();
+    private static Shard[] shards;
+    private static final TransactionEngine engine = THREADED ? new TransactionEngine() : null;
 
     /**
      * Starts a new transaction and asks all involved nodes to vote on the commit.
      * This is the initial step in the two-phase commit protocol where the server prepares
-     * the transaction, logs it, and requests votes from all nodes.
+     * the transaction, logs it, and requests votes from all nodes. The commit goes through the
+     * {@link CommitScheduler} first, so it waits for or is rejected on conflicting sources
+     * without any message being sent. The outcome is printed once the commit is decided.
      *
      * @param filename The name of the file involved in the transaction.
      * @param img      The image data related to the transaction in byte array format.
      * @param sources  Array of strings representing the source nodes and their associated files.
      */
     public void startCommit(String filename, byte[] img, String[] sources) {
-        String transactionId = UUID.randomUUID().toString();
+        submitCommit(filename, img, sources).thenAccept(result -> System.out.println("Server: " + result));
+    }
+
+    /**
+     * Starts a new transaction like {@link #startCommit}, and returns its outcome to code running
+     * in the coordinator's process.
+     *
+     * @param filename The name of the file involved in the transaction.
+     * @param img      The image data related to the transaction in byte array format.
+     * @param sources  Array of strings representing the source nodes and their associated files.
+     * @return A future completed with the outcome and timing once the commit is decided.
+     */
+    public CompletableFuture<CommitTracker.Result> submitCommit(String filename, byte[] img, String[] sources) {
+        String transactionId = Watermark.newTransactionId();
+        CompletableFuture<CommitTracker.Result> result = CommitTracker.track(transactionId);
+        Capture.submitted(transactionId, filename, img.length, Arrays.asList(sources));
+        if (!CommitScheduler.submit(transactionId, Arrays.asList(sources), img.length, () -> start(transactionId, filename, img, sources))) {
+            Watermark.close(transactionId);
+            CommitTracker.decided(transactionId, CommitTracker.Outcome.REJECTED);
+        }
+        return result;
+    }
+
+    /**
+     * Starts a single-composite transaction whose sources have been reserved.
+     *
+     * @param transactionId The transaction ID.
+     * @param filename      The name of the file involved in the transaction.
+     * @param img           The image data related to the transaction.
+     * @param sources       The source nodes and their associated files.
+     */
+    private void start(String transactionId, String filename, byte[] img, String[] sources) {
         Transaction transaction = new Transaction(transactionId, filename, img, sources, PL);
-        transactionMap.put(transactionId, transaction);
+        if (engine != null) {
+            transaction.attachMailbox();
+        }
+        getTransactions(transactionId).put(transactionId, transaction);
+        CommitTracker.phaseChanged(transactionId, Transaction.Phase.PREPARE);
+        Log WAL = transaction.getWAL();
+        byte[] payload = PayloadCodec.encode(img);
+        Tracer.Span span = Tracer.start("log append", transactionId);
+        WAL.write2Log(filename + "-", new byte[][] {payload}, "-" + String.join(",", sources));
+        span.end();
+        transaction.askForVote(payload);
+        if (engine != null) {
+            engine.submit(transaction);
+        }
+    }
+
+    /**
+     * Starts one transaction that publishes several composites atomically. Every node is sent a
+     * single prepare listing all of its files in the batch, and on commit all composites are
+     * written before one fsync, so the protocol and durability cost is shared across the batch.
+     *
+     * @param filenames The names of the composites.
+     * @param imgs      The image data of each composite.
+     * @param sources   The sources of each composite, as "node:file" strings.
+     */
+    public void startBatchCommit(String[] filenames, byte[][] imgs, String[][] sources) {
+        submitBatchCommit(filenames, imgs, sources).thenAccept(result -> System.out.println("Server: " + result));
+    }
+
+    /**
+     * Starts a batch transaction like {@link #startBatchCommit}, and returns its outcome to code
+     * running in the coordinator's process.
+     *
+     * @param filenames The names of the composites.
+     * @param imgs      The image data of each composite.
+     * @param sources   The sources of each composite, as "node:file" strings.
+     * @return A future completed with the outcome and timing once the batch is decided.
+     */
+    public CompletableFuture<CommitTracker.Result> submitBatchCommit(String[] filenames, byte[][] imgs, String[][] sources) {
+        if (filenames.length == 0 || filenames.length != imgs.length || filenames.length != sources.length) {
+            throw new IllegalArgumentException("Batch needs one image and one source list per composite");
+        }
+        Set<String> seen = new HashSet<>();
+        for (String[] compositeSources : sources) {
+            for (String source : compositeSources) {
+                if (!seen.add(source)) {
+                    throw new IllegalArgumentException("Source " + source + " is used by more than one composite");
+                }
+            }
+        }
+
+        String transactionId = Watermark.newTransactionId();
+        CompletableFuture<CommitTracker.Result> result = CommitTracker.track(transactionId);
+        List<String> allSources = new ArrayList<>(seen);
+        Capture.submitted(transactionId, String.join(";", filenames), Arrays.stream(imgs).mapToInt(img -> img.length).sum(), allSources);
+        if (!CommitScheduler.submit(transactionId, allSources, Arrays.stream(imgs).mapToLong(img -> img.length).sum(), () -> startBatch(transactionId, filenames, imgs, sources))) {
+            Watermark.close(transactionId);
+            CommitTracker.decided(transactionId, CommitTracker.Outcome.REJECTED);
+        }
+        return result;
+    }
+
+    /**
+     * Starts a batch transaction whose sources have been reserved.
+     *
+     * @param transactionId The transaction ID.
+     * @param filenames     The names of the composites.
+     * @param imgs          The image data of each composite.
+     * @param sources       The sources of each composite.
+     */
+    private void startBatch(String transactionId, String[] filenames, byte[][] imgs, String[][] sources) {
+        Transaction transaction = new Transaction(transactionId, filenames, imgs, sources, PL);
+        if (engine != null) {
+            transaction.attachMailbox();
+        }
+        getTransactions(transactionId).put(transactionId, transaction);
+        CommitTracker.phaseChanged(transactionId, Transaction.Phase.PREPARE);
         Log WAL = transaction.getWAL();
-        String imgBase64 = Base64.getEncoder().encodeToString(img);
-        WAL.write2Log(filename + "-" + imgBase64 + "-" + String.join(",", sources));
-        transaction.askForVote();
-        PL.fsync();
+        byte[][] payloads = new byte[imgs.length][];
+        String[] groups = new String[sources.length];
+        for (int i = 0; i < imgs.length; i++) {
+            payloads[i] = PayloadCodec.encode(imgs[i]);
+            groups[i] = String.join(",", sources[i]);
+        }
+        Tracer.Span span = Tracer.start("log append", transactionId);
+        WAL.write2Log(String.join(";", filenames) + "-", payloads, "-" + String.join(";", groups));
+        span.end();
+        transaction.askForVote(payloads);
+        if (engine != null) {
+            engine.submit(transaction);
+        }
     }
     
     /**
@@ -51,34 +175,65 @@ public class Server implements ProjectLib.CommitServing {
     public static void main (String args[]) throws Exception {
         if (args.length != 1) throw new Exception("Need 1 arg: <port>");
         Server srv = new Server();
+        shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(i);
+        }
+        Tracer.init("Server");
+        Capture.init("Server");
         PL = new ProjectLib(Integer.parseInt(args[0]), srv);
+        SyncScheduler.start(PL);
         System.out.println("Server start");
 
-        /* recover transactions */
+        /* recover transactions into the shards that own them */
         RecoveryManager rm = new RecoveryManager(PL);
-        if (rm.getTransactions2Recover() == null) {
+        ConcurrentHashMap<String, Transaction> recovered = rm.getTransactions2Recover();
+        if (recovered == null) {
             System.out.println("No transactions to recover");
         } else {
-            transactionMap = rm.getTransactions2Recover();
-            
-            for (Transaction transaction : transactionMap.values()) {
+            for (Transaction transaction : recovered.values()) {
                 System.out.println(transaction.getID());
+                if (engine != null) {
+                    transaction.attachMailbox();
+                }
+                getTransactions(transaction.getID()).put(transaction.getID(), transaction);
+                Watermark.open(transaction.getID());
                 rm.recover(transaction);
+                if (transaction.getPhase() == Transaction.Phase.PREPARE) {
+                    CommitScheduler.reserve(transaction.getID(), transaction.getSources()); // one-phase, still open
+                }
+                if (engine != null) {
+                    engine.submit(transaction);
+                }
             }
         }
 
-        /* start threads to receive and send messages */
-        Thread receiver = new Thread(new MsgReceiver(transactionMap, PL));
-        Thread sender = new Thread(new MsgSender(transactionMap, PL));
+        /* start the shards, the router in front of them, and the snapshot writer */
+        for (Shard shard : shards) {
+            shard.start(PL);
+        }
+        Thread router = new Thread(new MsgRouter(shards, PL), "router");
+        Thread snapshot = new Thread(new Snapshot(shards, PL), "snapshot");
+        snapshot.setDaemon(true);
 
-        receiver.start();
-        sender.start();
+        router.start();
+        snapshot.start();
+        Watermark.start(PL);
 
         try {
-            receiver.join();
-            sender.join();
+            router.join();
         } catch (InterruptedException e) {
             System.out.println("Main thread interrupted: " + e.getMessage());
         }
     }
+
+    /**
+     * Returns the transaction table of the shard that owns a transaction.
+     *
+     * @param transactionId The transaction ID.
+     * @return The owning shard's transaction table.
+     */
+    private static ConcurrentHashMap<String, Transaction> getTransactions(String transactionId) {
+        return shards[Shard.of(transactionId, shards.length)].getTransactions();
+    }
 }
@@ -0,0 +1,87 @@
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One shard of the coordinator. Each shard owns the transactions whose ids hash to it, together
+ * with its own inbox, dispatch thread and retransmit timer, so shards never contend with each
+ * other on the commit path. Transaction logs are already one file per transaction, so each shard
+ * writes only to the logs of its own transactions.
+ */
+public class Shard {
+
+    private final int index;
+    private final ConcurrentHashMap<String, Transaction> transactions = new ConcurrentHashMap<>();
+    private final BlockingQueue<ProjectLib.Message> inbox = new LinkedBlockingQueue<>();
+
+    /**
+     * Constructs an empty shard.
+     *
+     * @param index The position of this shard among all shards.
+     */
+    public Shard(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Maps a transaction id to the shard that owns it.
+     *
+     * @param transactionId The transaction ID.
+     * @param count         The number of shards.
+     * @return The index of the owning shard.
+     */
+    public static int of(String transactionId, int count) {
+        return Math.floorMod(transactionId.hashCode(), count);
+    }
+
+    /**
+     * Maps a transaction id held in a message body to the shard that owns it, without copying it
+     * into a String. Ids are ASCII, so hashing the bytes gives the same shard as
+     * {@link #of(String, int)}.
+     *
+     * @param body  The message body.
+     * @param start The index at which the id starts.
+     * @param end   The index just past the id.
+     * @param count The number of shards.
+     * @return The index of the owning shard.
+     */
+    public static int of(byte[] body, int start, int end, int count) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + (body[i] & 0xff);
+        }
+        return Math.floorMod(hash, count);
+    }
+
+    /**
+     * Queues a message for this shard's dispatch thread.
+     *
+     * @param msg The message received from a node.
+     */
+    public void deliver(ProjectLib.Message msg) {
+        inbox.add(msg);
+    }
+
+    /**
+     * Starts this shard's dispatch and retransmit threads, and has the dispatch thread evict the
+     * shard's transactions as they finish.
+     *
+     * @param PL An instance of ProjectLib used for sending messages.
+     */
+    public void start(ProjectLib PL) {
+        MsgReceiver msgReceiver = new MsgReceiver(transactions, inbox, PL);
+        CommitTracker.addListener((id, phase) -> {
+            if (phase == Transaction.Phase.DONE && transactions.containsKey(id)) {
+                msgReceiver.finished(id); // finished off the dispatch thread, so evict it there
+            }
+        });
+        Thread receiver = new Thread(msgReceiver, "shard-" + index + "-receiver");
+        Thread sender = new Thread(new MsgSender(transactions, PL), "shard-" + index + "-sender");
+        receiver.start();
+        sender.start();
+    }
+
+    public ConcurrentHashMap<String, Transaction> getTransactions() {
+        return transactions;
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Periodically writes a compact snapshot of the coordinator's transaction table so that a restart
+ * does not have to replay every transaction log. A snapshot records, for each unfinished
+ * transaction, its id, phase, output file, sources, acknowledged nodes and a reference to the log
+ * that holds its image; images themselves are never copied into the snapshot. The snapshot is
+ * written to a temporary file and atomically renamed over the previous one.
+ *
+ * Whether a log has changed since the snapshot is not judged by timestamps, which may be too
+ * coarse to order a log write against the snapshot. Instead each snapshot starts a new
+ * {@link Log} manifest before it reads the table, and a transaction is only restored from the
+ * snapshot if its log is not listed in the manifests written since.
+ */
+public class Snapshot implements Runnable {
+
+    private static final int INTERVAL = 5000; // ms
+    private static final String SNAPSHOT_PATH = "./snapshot";
+    private static final String TMP_PATH = "./snapshot.tmp";
+    private static final String SEPARATOR = "|";
+
+    private Shard[] shards;
+    private ProjectLib PL;
+    private Map<String, String[]> records = new HashMap<>();
+
+    /**
+     * Constructs a snapshot writer for the transaction tables of all shards.
+     *
+     * @param shards The coordinator's shards.
+     * @param PL     An instance of ProjectLib used to make the snapshot durable.
+     */
+    public Snapshot(Shard[] shards, ProjectLib PL) {
+        this.shards = shards;
+        this.PL = PL;
+    }
+
+    private Snapshot() {
+    }
+
+    /**
+     * Loads the latest snapshot from disk.
+     *
+     * @return The loaded snapshot, or null if there is no readable snapshot.
+     */
+    public static Snapshot load() {
+        File file = new File(SNAPSHOT_PATH);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Snapshot snapshot = new Snapshot();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            Long.parseLong(line.trim()); // the time the snapshot was taken, for reference
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\\" + SEPARATOR, -1);
+                snapshot.records.put(fields[0], fields);
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error reading snapshot: " + e.getMessage());
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the IDs of the transactions recorded in this snapshot.
+     *
+     * @return The transaction IDs.
+     */
+    public Set<String> getIDs() {
+        return records.keySet();
+    }
+
+    /**
+     * Checks whether this snapshot holds the latest state of a transaction, which is the case when
+     * the transaction is recorded and its log has not been written or deleted since the snapshot
+     * was taken.
+     *
+     * @param id      The transaction ID.
+     * @param touched The transactions whose logs changed since the snapshot, from the manifests.
+     * @return true if the transaction can be restored from the snapshot, otherwise false.
+     */
+    public boolean covers(String id, Set<String> touched) {
+        return records.containsKey(id) && !touched.contains(id);
+    }
+
+    /**
+     * Rebuilds a transaction from its snapshot record. The image is left on disk and is only
+     * loaded if the transaction needs it.
+     *
+     * @param id The transaction ID.
+     * @param PL Reference to the ProjectLib instance for communication purposes.
+     * @return The restored transaction.
+     */
+    public Transaction restore(String id, ProjectLib PL) {
+        String[] fields = records.get(id);
+        Transaction t = new Transaction(id, fields[2].split(";"), null, splitGroups(fields[3]), PL);
+        t.setPhase(Transaction.Phase.valueOf(fields[1]));
+        if (!fields[4].isEmpty()) {
+            t.restoreAcks(fields[4].split(","));
+        }
+        return t;
+    }
+
+    /**
+     * Splits ';'-separated groups of ','-separated sources, one group per composite.
+     *
+     * @param groups The encoded source groups.
+     * @return The sources of each composite.
+     */
+    public static String[][] splitGroups(String groups) {
+        String[] parts = groups.split(";");
+        String[][] res = new String[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            res[i] = parts[i].split(",");
+        }
+        return res;
+    }
+
+    /**
+     * Writes a snapshot every {@link #INTERVAL} milliseconds.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(INTERVAL);
+                write();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Snapshot interrupted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the current transaction table to a temporary file and atomically replaces the
+     * previous snapshot with it. The manifest is rotated before the table is read, so any log
+     * written while the snapshot is being built is listed in the new manifest and gets replayed.
+     * The set-aside manifest is only dropped once the new snapshot is installed.
+     */
+    public void write() {
+        Log.rotateManifest();
+        long now = System.currentTimeMillis();
+        File tmp = new File(TMP_PATH);
+
+        try (FileWriter writer = new FileWriter(tmp)) {
+            writer.write(Long.toString(now));
+            writer.write(System.lineSeparator());
+            for (Shard shard : shards) {
+                for (Transaction t : shard.getTransactions().values()) {
+                    String[] fields = t.getSnapshotFields();
+                    if (fields != null) {
+                        writer.write(String.join(SEPARATOR, fields));
+                        writer.write(System.lineSeparator());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing snapshot: " + e.getMessage());
+            return;
+        }
+
+        PL.fsync(); // the new snapshot must be durable before it replaces the old one
+        try {
+            Files.move(tmp.toPath(), new File(SNAPSHOT_PATH).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Log.dropOldManifest(); // after the move, so a crash between the two only replays more logs
+            PL.fsync();
+        } catch (IOException e) {
+            System.out.println("Error installing snapshot: " + e.getMessage());
+        }
+    }
+}
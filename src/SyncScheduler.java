@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coalesces the coordinator's fsyncs. A transaction that has written a log record it must not act
+ * on before it is durable asks for a sync and gets a future; the sync thread waits a short window
+ * after the first such request so that other transactions can join, runs one fsync for all of
+ * them, and completes their futures. Messages that depend on durability, such as a commit
+ * decision, are sent from those futures.
+ *
+ * Nothing is synced unless someone asked for it, so records that recovery can do without, like
+ * the prepare record of a two-phase transaction under presumed abort or the deletion of a
+ * finished log, cost no fsync of their own and simply ride along with the next one.
+ *
+ * Requests go through a lock-free queue and wake the sync thread directly, so shards asking for
+ * a sync never wait on each other.
+ */
+public class SyncScheduler {
+
+    private static final int WINDOW = Integer.getInteger("syncWindow", 2); // ms
+
+    private static final ConcurrentLinkedQueue<CompletableFuture<Void>> requests = new ConcurrentLinkedQueue<>();
+    private static volatile Thread syncer;
+
+    /**
+     * Asks for everything written so far to be made durable.
+     *
+     * @param transactionId The transaction waiting for the fsync, for tracing.
+     * @return A future completed once an fsync that started after this call has finished.
+     */
+    public static CompletableFuture<Void> request(String transactionId) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Tracer.Span span = Tracer.startAsync("fsync", transactionId);
+        future.thenRun(span::end);
+        requests.add(future);
+        LockSupport.unpark(syncer);
+        return future;
+    }
+
+    /**
+     * Starts the sync thread.
+     *
+     * @param PL An instance of ProjectLib used to flush to stable storage.
+     */
+    public static void start(ProjectLib PL) {
+        syncer = new Thread(() -> {
+            try {
+                while (true) {
+                    while (requests.isEmpty()) {
+                        LockSupport.park();
+                    }
+                    Thread.sleep(WINDOW); // let concurrent transactions join this fsync
+
+                    List<CompletableFuture<Void>> batch = new ArrayList<>();
+                    for (CompletableFuture<Void> future; (future = requests.poll()) != null; ) {
+                        batch.add(future);
+                    }
+                    Tracer.Span span = Tracer.start("fsync", batch.size() + " transactions");
+                    PL.fsync();
+                    span.end();
+                    for (CompletableFuture<Void> future : batch) {
+                        future.complete(null);
+                    }
+                }
+            } catch (InterruptedException e) {
+                System.out.println("Sync thread interrupted: " + e.getMessage());
+            }
+        }, "sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Records where the time of a commit goes, on the coordinator and on every node. Tracing is off
+ * unless the process runs with -Dtrace=true, in which case each stage of a transaction, such as a
+ * log append, an fsync, a user prompt or a retransmit, is recorded as a span tagged with the
+ * transaction ID, and every protocol message carries a trace context: the body is prefixed with
+ * "trace:spanId:", which the receiving side strips before anything else looks at the message.
+ * The send and the receipt of a message are recorded as the two ends of a flow with that span ID,
+ * so a trace viewer draws the message as an arrow from the sender to the receiver.
+ *
+ * Each process writes its events to ./trace.json in the Chrome trace event format, one event per
+ * line, each followed by a comma. Timestamps are wall-clock microseconds, so the files of all
+ * processes share one timeline; "(echo '['; cat Server/trace.json a/trace.json ...) > all.json"
+ * merges them into a trace that chrome://tracing and Perfetto open as is, missing ']' included.
+ *
+ * Since every message passes through here, sends and receipts are also handed to {@link Capture},
+ * which records them whether or not tracing is on.
+ */
+public class Tracer {
+
+    public static final boolean ENABLED = Boolean.getBoolean("trace");
+    private static final String PATH = "./trace.json";
+    private static final String PREFIX = "trace:";
+    private static final byte[] PREFIX_BYTES = PREFIX.getBytes();
+    private static final long PID = ProcessHandle.current().pid();
+
+    private static Writer out;
+
+    /**
+     * Opens the trace file and names this process in it. Does nothing unless tracing is on.
+     *
+     * @param process The name of this process, such as "Server" or a node ID.
+     */
+    public static synchronized void init(String process) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            out = new FileWriter(PATH, true);
+        } catch (IOException e) {
+            System.out.println("Error opening trace file: " + e.getMessage());
+            return;
+        }
+        write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + PID + ",\"args\":{\"name\":\"" + process + "\"}}");
+    }
+
+    /**
+     * Starts a span that ends on the thread that started it.
+     *
+     * @param name          The stage, such as "fsync" or "user prompt".
+     * @param transactionId The transaction the stage belongs to.
+     * @return The span, to be ended once the stage is over.
+     */
+    public static Span start(String name, String transactionId) {
+        return ENABLED ? new Span(name, transactionId, false) : Span.NONE;
+    }
+
+    /**
+     * Starts a span that may end on another thread, such as a wait for a group commit. It is
+     * recorded as an async event, on a track of its own rather than on a thread.
+     *
+     * @param name          The stage, such as "journal" or "delete".
+     * @param transactionId The transaction the stage belongs to.
+     * @return The span, to be ended once the stage is over.
+     */
+    public static Span startAsync(String name, String transactionId) {
+        return ENABLED ? new Span(name, transactionId, true) : Span.NONE;
+    }
+
+    /**
+     * Builds a protocol message, carrying the trace context when tracing is on.
+     *
+     * @param addr          The destination.
+     * @param body          The message body.
+     * @param transactionId The transaction the message belongs to, or null for a heartbeat or a
+     *                      watermark.
+     * @return The message to send.
+     */
+    public static ProjectLib.Message message(String addr, byte[] body, String transactionId) {
+        Capture.sent(addr, body);
+        if (!ENABLED) {
+            return new ProjectLib.Message(addr, body);
+        }
+        String spanId = newSpanId();
+        flow("s", spanId, transactionId);
+        byte[] header = (PREFIX + spanId + ":").getBytes();
+        byte[] traced = new byte[header.length + body.length];
+        System.arraycopy(header, 0, traced, 0, header.length);
+        System.arraycopy(body, 0, traced, header.length, body.length);
+        return new ProjectLib.Message(addr, traced);
+    }
+
+    /**
+     * Strips the trace context from a received message and, when tracing is on here, records the
+     * end of its flow. The context is stripped even when tracing is off, since the sender may
+     * trace while this process does not. A message without a trace context is left as it is.
+     *
+     * @param msg The received message.
+     */
+    public static void receive(ProjectLib.Message msg) {
+        if (hasPrefix(msg.body)) {
+            strip(msg);
+        }
+        Capture.received(msg.addr, msg.body);
+    }
+
+    private static boolean hasPrefix(byte[] body) {
+        if (body.length < PREFIX_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < PREFIX_BYTES.length; i++) {
+            if (body[i] != PREFIX_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void strip(ProjectLib.Message msg) {
+        int end = PREFIX.length();
+        while (end < msg.body.length && msg.body[end] != ':') {
+            end++;
+        }
+        String spanId = new String(msg.body, PREFIX.length(), end - PREFIX.length());
+        byte[] body = new byte[Math.max(msg.body.length - end - 1, 0)];
+        System.arraycopy(msg.body, Math.min(end + 1, msg.body.length), body, 0, body.length);
+        msg.body = body;
+        if (ENABLED) {
+            flow("f", spanId, null);
+        }
+    }
+
+    private static void flow(String phase, String spanId, String transactionId) {
+        write("{\"name\":\"message\",\"cat\":\"message\",\"ph\":\"" + phase + "\",\"id\":\"" + spanId
+                + "\",\"ts\":" + now() + ",\"pid\":" + PID + ",\"tid\":" + Thread.currentThread().getId()
+                + (phase.equals("f") ? ",\"bp\":\"e\"" : "")
+                + (transactionId == null ? "" : ",\"args\":{\"tx\":\"" + transactionId + "\"}") + "}");
+    }
+
+    private static synchronized void write(String event) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(event + "," + System.lineSeparator());
+            out.flush(); // keep the events of a node that is about to crash
+        } catch (IOException e) {
+            System.out.println("Error writing trace: " + e.getMessage());
+        }
+    }
+
+    private static long now() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1000000 + now.getNano() / 1000;
+    }
+
+    private static String newSpanId() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * One stage of a transaction.
+     */
+    public static class Span {
+
+        private static final Span NONE = new Span();
+
+        private final String name;
+        private final String transactionId;
+        private final String id;
+        private final long start;
+        private final long tid;
+        private final boolean async;
+
+        private Span() {
+            this.name = null;
+            this.transactionId = null;
+            this.id = null;
+            this.start = 0;
+            this.tid = 0;
+            this.async = false;
+        }
+
+        Span(String name, String transactionId, boolean async) {
+            this.name = name;
+            this.transactionId = transactionId;
+            this.id = newSpanId();
+            this.start = now();
+            this.tid = Thread.currentThread().getId();
+            this.async = async;
+        }
+
+        /**
+         * Ends the span and records it, as a complete event on its thread or as a pair of async
+         * events.
+         */
+        public void end() {
+            if (this == NONE) {
+                return;
+            }
+            String fields = "\"name\":\"" + name + "\",\"cat\":\"commit\",\"pid\":" + PID + ",\"tid\":" + tid
+                    + ",\"args\":{\"tx\":\"" + transactionId + "\",\"span\":\"" + id + "\"}";
+            if (async) {
+                write("{" + fields + ",\"ph\":\"b\",\"id\":\"" + id + "\",\"ts\":" + start + "}");
+                write("{" + fields + ",\"ph\":\"e\",\"id\":\"" + id + "\",\"ts\":" + now() + "}");
+            } else {
+                write("{" + fields + ",\"ph\":\"X\",\"ts\":" + start + ",\"dur\":" + (now() - start) + "}");
+            }
+        }
+    }
+}
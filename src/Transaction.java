@@ -2,10 +2,14 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Represents a transaction in a distributed system that handles a two-phase commit protocol. 
@@ -15,50 +19,205 @@ import java.util.Map;
 public class Transaction {
 
     private static final int TIMEOUT = 6000; // 6 seconds
+    private static final int FANOUT = Integer.getInteger("fanout", 0); // max direct participants, 0 = flat
+    private static final boolean ONE_PHASE = Boolean.parseBoolean(System.getProperty("onePhase", "true"));
+    private static final int RETRY_INTERVAL = 500; // ms, the first wait between one-phase inquiries
+    private static final int MAX_RETRY_INTERVAL = 8000; // ms
 
     private String id;
     private ProjectLib PL;
     private Map<String, List<String>> sourceMap;
+    private Map<String, List<String>> relayMap;
     private Map<String, Boolean> nodeRes;
-    private Phase phase;
-    private byte[] image;
-    private String fileName;
+    private volatile Phase phase;
+    private boolean committed = false;
+    private String[] fileNames;
+    private List<Map<String, List<String>>> compositeMaps;
     private long startTime;
     private long responseTime;
     private Log WAL;
+    private BlockingQueue<ProjectLib.Message> mailbox;
+    private CompletableFuture<Void> decisionSynced = CompletableFuture.completedFuture(null);
+    private byte[] onePhasePayload; // the encoded image of a one-phase request, kept for resends
+    private int retries = 0;
+    private long nextRetry = 0;
 
     /**
      * Constructs a Transaction object with specific details needed to process it.
      *
      * @param id       Unique identifier for this transaction.
      * @param fileName The name of the file associated with the transaction.
-     * @param img      The image data related to the transaction in byte array format.
+     * @param img      The image data related to the transaction in byte array format, or null to page
+     *                 it back from the transaction log through {@link PayloadManager} when needed.
      * @param sources  Array of strings representing the source nodes and associated files.
      * @param PL       Reference to the ProjectLib instance for communication purposes.
      */
     public Transaction(String id, String fileName, byte[] img, String[] sources, ProjectLib PL) {
+        this(id, new String[] {fileName}, img == null ? null : new byte[][] {img}, new String[][] {sources}, PL);
+    }
+
+    /**
+     * Constructs a Transaction that publishes several composites atomically in one 2PC round.
+     *
+     * @param id        Unique identifier for this transaction.
+     * @param fileNames The names of the composites, one per entry.
+     * @param imgs      The image data of each composite, or null to page them back from the
+     *                  transaction log through {@link PayloadManager} when needed.
+     * @param sources   The sources of each composite, as "node:file" strings.
+     * @param PL        Reference to the ProjectLib instance for communication purposes.
+     */
+    public Transaction(String id, String[] fileNames, byte[][] imgs, String[][] sources, ProjectLib PL) {
         this.PL = PL;
         this.id = id;
-        this.fileName = fileName;
-        this.image = img;
-        this.sourceMap = parseSources(sources);
+        this.fileNames = fileNames;
+        this.compositeMaps = new ArrayList<>();
+        this.sourceMap = new HashMap<>();
+        for (String[] compositeSources : sources) {
+            Map<String, List<String>> compositeMap = parseSources(compositeSources);
+            compositeMaps.add(compositeMap);
+            for (Map.Entry<String, List<String>> entry : compositeMap.entrySet()) {
+                sourceMap.computeIfAbsent(entry.getKey(), node -> new ArrayList<>()).addAll(entry.getValue());
+            }
+        }
+        Watermark.involve(sourceMap.keySet());
+        this.relayMap = isBatch() ? null : buildRelayMap(sourceMap);
         this.phase = Phase.PREPARE;
         this.nodeRes = new HashMap<>();
         this.WAL = new Log(id);
+        int offset = String.join(";", fileNames).length() + 1; // the payloads follow the names and a '-'
+        for (int i = 0; i < fileNames.length; i++) {
+            PayloadManager.put(payloadKey(i), imgs == null ? null : imgs[i], WAL.getLogFile(), offset, i);
+        }
 		startTime = System.currentTimeMillis();
     }
 
     /**
      * Initiates the prepare phase of the transaction by asking all participating nodes to vote.
+     * In a batch, each node gets one 'bprepare' message listing its files per composite, followed
+     * by the images of only those composites it contributes to.
+     *
+     * A two-phase prepare goes out at once: under presumed abort, a coordinator that loses its
+     * prepare record simply answers inquiries with abort. A one-phase request hands the decision
+     * to the participant, so it is only sent once the log holding the image is durable, and the
+     * composite can still be written after a crash.
+     *
+     * @param payloads The images encoded by {@link PayloadCodec}, one per composite.
      */
-    public void askForVote() {
-        String imgBase64 = Base64.getEncoder().encodeToString(image);
+    public void askForVote(byte[]... payloads) {
         WAL.write2Log("phase: prepare" + ", id: " + id);
+        if (isOnePhase()) {
+            onePhasePayload = payloads[0];
+            SyncScheduler.request(id).thenRun(() -> sendPrepares(payloads));
+        } else {
+            sendPrepares(payloads);
+        }
+    }
+
+    /**
+     * Sends the prepare messages built in {@link #askForVote(byte[]...)}.
+     *
+     * @param payloads The images encoded by {@link PayloadCodec}, one per composite.
+     */
+    private void sendPrepares(byte[]... payloads) {
+        Tracer.Span span = Tracer.start("send prepare", id);
+        for (String node : targets()) {
+            List<byte[]> nodePayloads = new ArrayList<>();
+            String header2Send;
+            if (isBatch()) {
+                List<String> groups = new ArrayList<>();
+                for (int i = 0; i < compositeMaps.size(); i++) {
+                    if (compositeMaps.get(i).containsKey(node)) {
+                        groups.add(String.join(",", compositeMaps.get(i).get(node)));
+                        nodePayloads.add(payloads[i]);
+                    }
+                }
+                header2Send = "bprepare:" + id + ":" + String.join(";", groups) + ":";
+            } else if (isOnePhase()) {
+                nodePayloads.add(payloads[0]);
+                header2Send = "onephase:" + id + ":" + String.join(",", sourceMap.get(node)) + ":";
+            } else {
+                nodePayloads.add(payloads[0]);
+                header2Send = relayMap == null
+                        ? "prepare:" + id + ":" + String.join(",", sourceMap.get(node)) + ":"
+                        : "rprepare:" + id + ":" + subtree(node) + ":";
+            }
+            PL.sendMessage(Tracer.message(node, buildBody(header2Send.getBytes(), nodePayloads), id));
+        }
+        span.end();
+        for (int i = 0; i < fileNames.length; i++) {
+            PayloadManager.unpin(payloadKey(i));
+        }
+    }
+
+    /**
+     * Asks the participant of a one-phase transaction for its outcome. The coordinator cannot
+     * abort such a transaction on its own, because the participant may already have committed, so
+     * it keeps asking until the participant reports the outcome. The inquiry is a bare
+     * 'query' message; the participant answers from its log once it has decided, reports that it
+     * is still deciding, or reports that it never got the request, which only then is resent with
+     * its image. Inquiries back off exponentially, so this may be called on every pulse.
+     *
+     * A participant that is suspected dead gives its sources back to the {@link CommitScheduler},
+     * so that later commits on them are not held up for as long as it is down. Its files stay
+     * locked or are gone while it decides, so such a commit can never use them meanwhile.
+     */
+    public synchronized void retryOnePhase() {
+        long now = System.currentTimeMillis();
+        if (now < nextRetry || phase != Phase.PREPARE) {
+            return;
+        }
+        nextRetry = now + Math.min((long) RETRY_INTERVAL << Math.min(retries, 16), MAX_RETRY_INTERVAL);
+        retries++;
+        String node = sourceMap.keySet().iterator().next();
+        if (FailureDetector.isSuspected(node)) {
+            CommitScheduler.finish(id, false);
+        }
+        System.out.println("Asking " + node + " for the one-phase outcome id: " + id);
+        PL.sendMessage(Tracer.message(node, ("query:" + id).getBytes(), id));
+    }
+
+    /**
+     * Resends the one-phase request of a single-participant transaction with its image, encoding
+     * the image again only if this process has not encoded it yet.
+     *
+     * @param node The participant.
+     */
+    private void resendOnePhase(String node) {
+        if (onePhasePayload == null) {
+            onePhasePayload = PayloadCodec.encode(PayloadManager.get(payloadKey(0)));
+        }
+        byte[] header = ("onephase:" + id + ":" + String.join(",", sourceMap.get(node)) + ":").getBytes();
+        List<byte[]> payloads = new ArrayList<>();
+        payloads.add(onePhasePayload);
+        System.out.println("Resending one-phase request to " + node + " id: " + id);
+        PL.sendMessage(Tracer.message(node, buildBody(header, payloads), id));
+    }
 
-        for (String node : sourceMap.keySet()) {
-            String msg = "prepare:" + id + ":" + String.join(",", sourceMap.get(node)) + ":" + imgBase64;
-            PL.sendMessage(new ProjectLib.Message(node, msg.getBytes()));
+    /**
+     * Builds a prepare body from its header and payloads, separating payloads with ';'. Each
+     * payload is copied once, straight into the body.
+     *
+     * @param header   The message header.
+     * @param payloads The encoded payloads.
+     * @return The message body.
+     */
+    private byte[] buildBody(byte[] header, List<byte[]> payloads) {
+        int length = header.length + payloads.size() - 1;
+        for (byte[] payload : payloads) {
+            length += payload.length;
         }
+
+        byte[] body = new byte[length];
+        System.arraycopy(header, 0, body, 0, header.length);
+        int position = header.length;
+        for (int i = 0; i < payloads.size(); i++) {
+            if (i > 0) {
+                body[position++] = ';';
+            }
+            System.arraycopy(payloads.get(i), 0, body, position, payloads.get(i).length);
+            position += payloads.get(i).length;
+        }
+        return body;
     }
 
     /**
@@ -91,30 +250,117 @@ public class Transaction {
     
     /**
      * Commits the transaction by sending a commit message to all nodes involved in the transaction.
+     * The first call logs the decision and then writes the composites, and the messages of this and
+     * every later call wait until both are durable. Nodes suspected by the {@link FailureDetector}
+     * are skipped; the retransmit reaches them once their heartbeats resume.
      */
-    public void commit() {
-        for (String node : sourceMap.keySet()) {
-            if (!nodeRes.containsKey(node)) {
-                String msg2Send = "decision:" + id + ":" + "commit:" + String.join(",", sourceMap.get(node));
+    public synchronized void commit() {
+        if (phase == Phase.PREPARE) {
+            nodeRes.clear(); // clear the votes so the decision goes out to every node now
+            phase = Phase.COMMIT;
+            committed = true;
+            Tracer.Span span = Tracer.start("log append", id);
+            WAL.write2Log("phase: commit" + ", id: " + id);
+            span.end();
+            /* after the commit record, so no crash leaves a composite whose commit was not logged */
+            for (int i = 0; i < fileNames.length; i++) {
+                write2Dir(fileNames[i], PayloadManager.get(payloadKey(i)));
+                PayloadManager.release(payloadKey(i));
+            }
+            decisionSynced = SyncScheduler.request(id); // one fsync makes the record and the composites durable
+            decisionSynced.thenRun(() -> CommitTracker.decided(id, CommitTracker.Outcome.COMMITTED));
+            CommitScheduler.finish(id, true);
+            CommitTracker.phaseChanged(id, Phase.COMMIT);
+        }
+        decisionSynced.thenRun(this::sendCommit);
+    }
+
+    /**
+     * Sends the commit decision to every node that has not acknowledged it.
+     */
+    private synchronized void sendCommit() {
+        Tracer.Span span = Tracer.start("send decision", id);
+        for (String node : targets()) {
+            if (!nodeRes.containsKey(node) && !FailureDetector.isSuspected(node)) {
+                String msg2Send = decisionMsg(node, "commit");
 				System.out.println("Sending commit message to " + node + " id: " + id);
-                PL.sendMessage(new ProjectLib.Message(node, msg2Send.getBytes()));
+                PL.sendMessage(Tracer.message(node, msg2Send.getBytes(), id));
             }
         }
-        phase = Phase.COMMIT;
-        WAL.write2Log("phase: commit" + ", id: " + id);
+        span.end();
+    }
+
+    /**
+     * Answers a participant that asks for the outcome of this transaction because its decision
+     * has not arrived. Nothing is sent while the transaction is still collecting votes; the
+     * participant asks again later.
+     *
+     * In a hierarchical transaction a relay is answered with its full decision message, so a relay
+     * that restarted rebuilds its subtree and collects the ACKs again. A child is told which relay
+     * it answers to, since the coordinator only counts the relay's combined ACK.
+     *
+     * @param node The participant asking.
+     */
+    public void answerInquiry(String node) {
+        String outcome = getOutcome();
+        if (outcome == null) {
+            return;
+        }
+        System.out.println("Answering inquiry from " + node + " with " + outcome + " id: " + id);
+        String msg2Send;
+        if (relayMap == null) {
+            msg2Send = "status:" + id + ":" + outcome;
+        } else if (relayMap.containsKey(node)) {
+            msg2Send = decisionMsg(node, outcome);
+        } else {
+            msg2Send = "status:" + id + ":" + outcome + ":" + relayOf(node);
+        }
+        PL.sendMessage(Tracer.message(node, msg2Send.getBytes(), id));
+    }
+
+    /**
+     * Returns the decision of this transaction as it is sent to participants.
+     *
+     * @return "commit" or "abort", or null while the transaction is still collecting votes.
+     */
+    public String getOutcome() {
+        if (phase == Phase.PREPARE) {
+            return null;
+        }
+        return committed ? "commit" : "abort";
     }
 
     /**
      * Aborts the transaction by sending an abort message to all nodes involved in the transaction.
+     * Suspected nodes are skipped, as for {@link #commit()}. Nodes acknowledge an abort like a
+     * commit, so an aborted transaction also finishes and can be forgotten. Under presumed abort
+     * the abort record need not be durable before the messages go out.
      */
-    public void abort() {
-        for (String node : sourceMap.keySet()) {
-            String msg2Send = "decision:" + id + ":" + "abort:" + String.join(",", sourceMap.get(node));
+    public synchronized void abort() {
+        if (phase == Phase.PREPARE) {
+            nodeRes.clear(); // the ACKs of the abort are collected from here on
+        }
+        Tracer.Span span = Tracer.start("send decision", id);
+        for (String node : targets()) {
+            if (FailureDetector.isSuspected(node)) {
+                continue;
+            }
+            String msg2Send = decisionMsg(node, "abort");
             System.out.println("Sending abort message to " + node + " id: " + id);
-            PL.sendMessage(new ProjectLib.Message(node, msg2Send.getBytes()));
+            PL.sendMessage(Tracer.message(node, msg2Send.getBytes(), id));
         }
+        span.end();
+        boolean decided = phase == Phase.PREPARE;
         phase = Phase.ABORT;
         WAL.write2Log("phase: abort" + ", id: " + id);
+        for (int i = 0; i < fileNames.length; i++) {
+            PayloadManager.release(payloadKey(i));
+        }
+        if (decided) {
+            CommitScheduler.finish(id, false);
+            CommitTracker.phaseChanged(id, Phase.ABORT);
+            CommitTracker.decided(id, CommitTracker.Outcome.ABORTED);
+        }
     }
 
     /**
@@ -126,6 +372,11 @@ public class Transaction {
         String res = new String(msg.body).split(":", 2)[1];
         System.out.println("Received prepare response from " + msg.addr + " Content: " + res + " id: " + id);
 
+        if (isOnePhase()) {
+            handleOnePhaseRes(msg.addr, res);
+            return;
+        }
+
         if (res.equals("Yes") || res.equals("No")) {
             nodeRes.put(msg.addr, res.equals("Yes"));
 
@@ -134,21 +385,62 @@ public class Transaction {
 
             if (shouldCommit) {
                 commit();
-				write2Dir(fileName, image);
             } else if (shouldAbort) {
                 abort();
             }
+        } else {
+            System.out.println(id + ": drop message in prepare phase");
+        }
+    }
 
-            if (shouldCommit || shouldAbort) {
-                nodeRes.clear(); // clear the responses for the next phase
-            }
+    /**
+     * Processes the outcome reported by the participant of a one-phase transaction. On commit the
+     * composite is written and the log is only dropped once the composite is durable; either way
+     * the transaction is done, as the participant has already applied the outcome. An answer to
+     * an inquiry that the participant never got the request has the request resent.
+     *
+     * @param node The participant.
+     * @param res  "Committed" or "Aborted", or "Received" or "Unknown" in answer to an inquiry.
+     */
+    private void handleOnePhaseRes(String node, String res) {
+        if (res.equals("Received")) {
+            return; // still deciding, keep asking
+        }
+        if (res.equals("Unknown")) {
+            resendOnePhase(node);
+            return;
+        }
+        if (!res.equals("Committed") && !res.equals("Aborted")) {
+            System.out.println(id + ": drop message in one-phase commit");
+            return;
+        }
 
-            PL.fsync(); // flush the responses to stable storage
+        nodeRes.put(node, true);
+        phase = Phase.DONE;
+        committed = res.equals("Committed");
+        CommitTracker.phaseChanged(id, committed ? Phase.COMMIT : Phase.ABORT);
+        if (committed) {
+            write2Dir(fileNames[0], PayloadManager.get(payloadKey(0)));
+            SyncScheduler.request(id).thenRun(this::forget);
         } else {
-            System.out.println(id + ": drop message in prepare phase");
+            forget();
         }
     }
 
+    /**
+     * Drops a one-phase transaction whose outcome has been applied.
+     */
+    private void forget() {
+        onePhasePayload = null;
+        PayloadManager.remove(payloadKey(0));
+        WAL.close();
+        Watermark.close(id);
+        CommitScheduler.finish(id, committed);
+        CommitScheduler.done(id);
+        CommitTracker.decided(id, committed ? CommitTracker.Outcome.COMMITTED : CommitTracker.Outcome.ABORTED);
+        CommitTracker.phaseChanged(id, Phase.DONE);
+    }
+
     /**
      * Processes responses received during the decision phase of the transaction.
      *
@@ -165,8 +457,13 @@ public class Transaction {
                 System.out.println(id + ": All nodes have acknowledged");
                 // write2Dir(fileName, image);
                 phase = Phase.DONE;
-                WAL.close();
-                PL.fsync(); // flush the messages when all nodes have acknowledged
+                for (int i = 0; i < fileNames.length; i++) {
+                    PayloadManager.remove(payloadKey(i));
+                }
+                WAL.close(); // a lost deletion only makes recovery resend the decision
+                Watermark.close(id);
+                CommitScheduler.done(id);
+                CommitTracker.phaseChanged(id, Phase.DONE);
             }
         } else {
             System.out.println(id + ": drop message in decision phase");
@@ -180,12 +477,14 @@ public class Transaction {
      * @param img  The image data to write.
      */
     private void write2Dir(String file, byte[] img) {
+        Tracer.Span span = Tracer.start("composite write", id);
         try {
             Files.write(Paths.get(file), img);
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Server: Error while writing image to disk");
         }
+        span.end();
     }
     
     /**
@@ -208,6 +507,131 @@ public class Transaction {
         return sourceMap;
     }
 
+    /**
+     * Checks whether this transaction takes the one-phase fast path: a single composite whose
+     * sources all belong to one node, which is then delegated the decision.
+     *
+     * @return true for a one-phase transaction, otherwise false.
+     */
+    public boolean isOnePhase() {
+        return ONE_PHASE && !isBatch() && sourceMap.size() == 1;
+    }
+
+    /**
+     * Checks whether this transaction publishes more than one composite.
+     *
+     * @return true for a batch transaction, otherwise false.
+     */
+    private boolean isBatch() {
+        return fileNames.length > 1;
+    }
+
+    /**
+     * Returns the key under which {@link PayloadManager} holds the image of a composite.
+     *
+     * @param index The index of the composite in this transaction.
+     * @return The payload key.
+     */
+    private String payloadKey(int index) {
+        return id + "#" + index;
+    }
+
+    /**
+     * Groups the participants into at most {@link #FANOUT} subtrees when there are more
+     * participants than that. The first node of each subtree acts as its relay: it forwards the
+     * prepare and the decision to the other members and answers the coordinator with one combined
+     * vote or ACK. Nodes are grouped in sorted order, so a recovered transaction rebuilds the same
+     * tree from its sources.
+     *
+     * @param sourceMap The map of nodes to their files.
+     * @return A map of relays to the members of their subtree, or null if the transaction is flat.
+     */
+    private Map<String, List<String>> buildRelayMap(Map<String, List<String>> sourceMap) {
+        if (FANOUT <= 0 || sourceMap.size() <= FANOUT) {
+            return null;
+        }
+
+        List<String> nodes = new ArrayList<>(sourceMap.keySet());
+        Collections.sort(nodes);
+        int groupSize = (nodes.size() + FANOUT - 1) / FANOUT;
+        Map<String, List<String>> relayMap = new LinkedHashMap<>();
+        for (int i = 0; i < nodes.size(); i += groupSize) {
+            List<String> group = nodes.subList(i, Math.min(i + groupSize, nodes.size()));
+            relayMap.put(group.get(0), new ArrayList<>(group));
+        }
+        return relayMap;
+    }
+
+    /**
+     * Returns the nodes the coordinator talks to directly: every participant in a flat
+     * transaction, or only the relays in a hierarchical one.
+     *
+     * @return The direct participants.
+     */
+    private Iterable<String> targets() {
+        return relayMap == null ? sourceMap.keySet() : relayMap.keySet();
+    }
+
+    /**
+     * Returns the relay of the subtree a node belongs to.
+     *
+     * @param node The participant.
+     * @return The relay, or the node itself if it is not in any subtree.
+     */
+    private String relayOf(String node) {
+        for (Map.Entry<String, List<String>> entry : relayMap.entrySet()) {
+            if (entry.getValue().contains(node)) {
+                return entry.getKey();
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns the position of a node among the nodes this transaction messages directly.
+     *
+     * @param node The node.
+     * @return The node's index, or -1 if the coordinator does not message it directly.
+     */
+    public int indexOfTarget(String node) {
+        int index = 0;
+        for (String target : targets()) {
+            if (target.equals(node)) {
+                return index;
+            }
+            index++;
+        }
+        return -1;
+    }
+
+    /**
+     * Describes the subtree under a relay as "node=file,file;node=file", with the relay first.
+     *
+     * @param relay The relay node.
+     * @return The subtree description.
+     */
+    private String subtree(String relay) {
+        List<String> members = new ArrayList<>();
+        for (String node : relayMap.get(relay)) {
+            members.add(node + "=" + String.join(",", sourceMap.get(node)));
+        }
+        return String.join(";", members);
+    }
+
+    /**
+     * Builds the decision message for a direct participant.
+     *
+     * @param node     The direct participant.
+     * @param decision Either "commit" or "abort".
+     * @return The decision message.
+     */
+    private String decisionMsg(String node, String decision) {
+        if (relayMap == null) {
+            return "decision:" + id + ":" + decision + ":" + String.join(",", sourceMap.get(node));
+        }
+        return "rdecision:" + id + ":" + decision + ":" + subtree(node);
+    }
+
     /**
      * Checks if the response time has exceeded the defined timeout.
      *
@@ -226,13 +650,28 @@ public class Transaction {
         return nodeRes.values().stream().allMatch(decision -> decision.equals(Boolean.TRUE));
     }
 
+    /**
+     * Checks whether a node that has not answered yet is suspected to have failed, in which case
+     * waiting for its vote is pointless.
+     *
+     * @return true if a silent node is suspected, otherwise false.
+     */
+    public boolean hasSuspectedNode() {
+        for (String node : targets()) {
+            if (!nodeRes.containsKey(node) && FailureDetector.isSuspected(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Checks if all responses have been received from all nodes involved in the transaction.
      *
      * @return true if all responses have been received, otherwise false.
      */
     public boolean recvAllRes() {
-        for (String node : sourceMap.keySet()) {
+        for (String node : targets()) {
             if (!nodeRes.containsKey(node)) {
                 return false;
             }
@@ -250,15 +689,71 @@ public class Transaction {
         DONE
     }
 
+    /**
+     * Returns the fields of this transaction's snapshot record: id, phase, output files, sources,
+     * acknowledged nodes and the log file that holds the images. Output files and the source
+     * groups of a batch are separated by ';'. {@link #commit()} and {@link #abort()} hold the same
+     * lock while they change the phase and log it, so a record never shows a decision that its
+     * log does not hold yet.
+     *
+     * @return The snapshot fields, or null if the transaction is done and need not be recorded.
+     */
+    public synchronized String[] getSnapshotFields() {
+        if (phase == Phase.DONE) {
+            return null;
+        }
+
+        List<String> groups = new ArrayList<>();
+        for (Map<String, List<String>> compositeMap : compositeMaps) {
+            List<String> sources = new ArrayList<>();
+            for (Map.Entry<String, List<String>> entry : compositeMap.entrySet()) {
+                for (String file : entry.getValue()) {
+                    sources.add(entry.getKey() + ":" + file);
+                }
+            }
+            groups.add(String.join(",", sources));
+        }
+        String acked = phase == Phase.PREPARE ? "" : String.join(",", nodeRes.keySet());
+        return new String[] {id, phase.name(), String.join(";", fileNames), String.join(";", groups), acked, WAL.getLogFile().getPath()};
+    }
+
+    /**
+     * Marks nodes as having acknowledged the decision, so that a restored transaction does not
+     * resend it to them.
+     *
+     * @param nodes The nodes that have acknowledged the decision.
+     */
+    public synchronized void restoreAcks(String[] nodes) {
+        for (String node : nodes) {
+            nodeRes.put(node, true);
+        }
+    }
+
     /* some getters and setters */
     public void setPhase(Phase phase) {
         this.phase = phase;
+        this.committed = phase == Phase.COMMIT;
     }
 
     public Phase getPhase() {
         return phase;
     }
 
+    /**
+     * Returns the sources of this transaction across all of its composites.
+     *
+     * @return The sources as "node:file" strings.
+     */
+    public List<String> getSources() {
+        List<String> sources = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : sourceMap.entrySet()) {
+            for (String file : entry.getValue()) {
+                sources.add(entry.getKey() + ":" + file);
+            }
+        }
+        return sources;
+    }
+
     public String getID() {
         return id;
     }
@@ -267,6 +762,18 @@ public class Transaction {
         return WAL;
     }
 
+    /**
+     * Hands this transaction over to {@link TransactionEngine}, so replies are queued in its
+     * mailbox instead of being handled by the dispatch thread.
+     */
+    public void attachMailbox() {
+        mailbox = new LinkedBlockingQueue<>();
+    }
+
+    public BlockingQueue<ProjectLib.Message> getMailbox() {
+        return mailbox;
+    }
+
     public long getStartTime() {
         return startTime;
     }
@@ -0,0 +1,102 @@
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An alternative coordinator engine that drives each transaction as straight-line code on its
+ * own thread: wait for votes until the prepare deadline, let the transaction log and send its
+ * decision, then wait for ACKs and retransmit the decision on every silent pulse. A prepare is
+ * aborted early once a node that has not voted is suspected by the {@link FailureDetector}. A
+ * one-phase transaction keeps retrying its request after the deadline instead of aborting. Replies reach
+ * the transaction through its mailbox instead of being handled on the shard's dispatch thread,
+ * and {@link MsgSender} leaves engine-driven transactions alone.
+ *
+ * Threads come from a virtual-thread-per-task executor when the JVM provides one, so a waiting
+ * transaction costs almost nothing; older JVMs fall back to a cached pool of platform threads.
+ */
+public class TransactionEngine {
+
+    private static final int PULSE = 500; // ms
+    private static final int TIMEOUT = 6000; // ms
+
+    private final ExecutorService executor = newExecutor();
+
+    /**
+     * Starts driving a transaction whose prepares have been sent, or which has been recovered.
+     *
+     * @param transaction The transaction to drive.
+     */
+    public void submit(Transaction transaction) {
+        executor.execute(() -> drive(transaction));
+    }
+
+    /**
+     * Runs the protocol of one transaction to completion.
+     *
+     * @param transaction The transaction to drive.
+     */
+    private void drive(Transaction transaction) {
+        BlockingQueue<ProjectLib.Message> mailbox = transaction.getMailbox();
+        try {
+            /* phase 1: collect votes until every node answered or the deadline passed */
+            long deadline = transaction.getStartTime() + TIMEOUT;
+            while (transaction.getPhase() == Transaction.Phase.PREPARE) {
+                long wait = Math.min(deadline - System.currentTimeMillis(), PULSE);
+                ProjectLib.Message msg = wait > 0 ? mailbox.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (msg != null) {
+                    transaction.setResponseTime(System.currentTimeMillis());
+                    transaction.handleRes(msg);
+                } else if (System.currentTimeMillis() >= deadline && transaction.isOnePhase()) {
+                    Tracer.Span span = Tracer.start("retransmit", transaction.getID());
+                    transaction.retryOnePhase();
+                    span.end();
+                    deadline += PULSE;
+                } else if (System.currentTimeMillis() >= deadline) {
+                    System.out.println("engine: timeout aborting transaction " + transaction.getID());
+                    transaction.abort();
+                } else if (!transaction.isOnePhase() && transaction.hasSuspectedNode()) {
+                    System.out.println("engine: node suspected, aborting transaction " + transaction.getID());
+                    transaction.abort();
+                }
+            }
+
+            /* phase 2: collect ACKs, retransmitting the decision on every silent pulse */
+            while (!transaction.recvAllRes()) {
+                ProjectLib.Message msg = mailbox.poll(PULSE, TimeUnit.MILLISECONDS);
+                if (msg != null) {
+                    transaction.setResponseTime(System.currentTimeMillis());
+                    transaction.handleRes(msg);
+                } else {
+                    Tracer.Span span = Tracer.start("retransmit", transaction.getID());
+                    if (transaction.getPhase() == Transaction.Phase.COMMIT) {
+                        transaction.commit();
+                    } else if (transaction.getPhase() == Transaction.Phase.ABORT) {
+                        transaction.abort();
+                    }
+                    span.end();
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("engine: interrupted while driving " + transaction.getID());
+        }
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor if the running JVM supports it, otherwise a
+     * cached pool of daemon platform threads.
+     *
+     * @return The executor that runs transactions.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
@@ -1,13 +1,24 @@
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileLock;
-import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Base64;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Represents a user node in a distributed system that handles messages related to file operations,
@@ -16,10 +27,39 @@ import java.util.HashMap;
  */
 public class UserNode implements ProjectLib.MessageHandling {
 
+    private static final int RELAY_TIMEOUT = 4000; // ms, below the coordinator's prepare timeout
+    private static final int INQUIRY_INTERVAL = Integer.getInteger("inquiryInterval", 1000); // ms
+    private static final String COORDINATOR = "Server";
+    private static final boolean WAIT_POLICY = "wait".equals(System.getProperty("lockPolicy"));
+    private static final boolean OS_LOCKS = Boolean.getBoolean("osLocks");
+    private static final int LOCK_WAIT = Integer.getInteger("lockWait", 3000); // ms, below RELAY_TIMEOUT
+
     private final String myId;
-    private final HashMap<String, FileLock> lockedFiles = new HashMap<>();
-    private final HashMap<String, Log> WALs = new HashMap<>();
-    private static RecoveryManager rm;
+    private final LockTable locks = new LockTable(OS_LOCKS);
+    private final HashMap<String, ArrayDeque<Waiter>> waitQueues = new HashMap<>();
+    private final ConcurrentHashMap<String, Waiter> waiting = new ConcurrentHashMap<>();
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+    private volatile String forgetBelow = "";
+    private final ConcurrentHashMap<String, String> votes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RelayGroup> relayGroups = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String[]> inDoubt = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ScheduledFuture<?>> inquiries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> acking = new ConcurrentHashMap<>(); // commit ACKs not yet durable
+    private final CountDownLatch recovered = new CountDownLatch(1);
+    private final Reclaimer reclaimer = new Reclaimer();
+    private final Inventory inventory = new Inventory();
+    private final Set<String> reclaiming = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService woken = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "woken-prepare");
+        t.setDaemon(true);
+        return t;
+    }); // retries of queued prepares, which may block on the user and must not hold up the timer
+    private static Journal journal;
     private static ProjectLib PL;
     
     /**
@@ -34,74 +74,316 @@ public class UserNode implements ProjectLib.MessageHandling {
     /**
      * Receives and handles messages from other nodes or processes.
      * This method processes 'prepare' messages for phase-1 and 'decision' messages for phase-2 of
-     * the transaction protocol.
+     * the transaction protocol, their 'rprepare' and 'rdecision' forms when this node relays a
+     * subtree, 'onephase' messages for transactions this node decides alone and 'query' inquiries
+     * about them, 'status' answers to its inquiries, 'watermark' notices, and the replies of the
+     * subtree's children. Messages arriving before startup recovery has finished wait for it.
      *
      * @param msg The message received.
      * @return true Always returns true to indicate successful handling of the message.
      */
     @Override
     public boolean deliverMessage(ProjectLib.Message msg) {
+        try {
+            recovered.await();
+        } catch (InterruptedException e) {
+            System.out.println(myId + ": Interrupted while waiting for recovery: " + e.getMessage());
+            return true;
+        }
+        Tracer.receive(msg);
+        Tracer.Span span = Tracer.start("receive", Tracer.ENABLED ? transactionIdOf(msg.body) : null);
         // System.out.println(myId + ": Got message from " + msg.addr);
-        String parsedMsg = new String(msg.body);
-
-        if (parsedMsg.startsWith("prepare")) { // phase-1
+        if (startsWith(msg.body, "prepare")) { // phase-1
             handlePrepare(msg);
-        } else if (parsedMsg.startsWith("decision")) { // phase-2
+        } else if (startsWith(msg.body, "decision")) { // phase-2
             handleDecision(msg);
+        } else if (startsWith(msg.body, "bprepare")) { // phase-1, for a batch of composites
+            handleBatchPrepare(msg);
+        } else if (startsWith(msg.body, "rprepare")) { // phase-1, as a relay
+            handleRelayPrepare(msg);
+        } else if (startsWith(msg.body, "rdecision")) { // phase-2, as a relay
+            handleRelayDecision(msg);
+        } else if (startsWith(msg.body, "onephase")) { // single-node commit, decided here
+            handleOnePhase(msg);
+        } else if (startsWith(msg.body, "query")) { // the coordinator asks for a one-phase outcome
+            handleQuery(msg);
+        } else if (startsWith(msg.body, "status")) { // answer to an inquiry
+            handleStatus(msg);
+        } else if (startsWith(msg.body, "watermark")) { // the coordinator forgot older transactions
+            handleWatermark(msg);
+        } else if (indexOfField(msg.body, 1) < msg.body.length) { // reply from a relay child
+            handleRelayReply(msg);
         } else {
             System.out.println(myId + ": Unknown message received");
         }
 
+        span.end();
         return true;
     }
 
+    /**
+     * Extracts the transaction ID of a message for tracing: the second field of a request or
+     * notice, which starts with its kind, or the first field of a reply from a relay child.
+     *
+     * @param body The message body.
+     * @return The transaction ID, or the notice's argument for a message without one.
+     */
+    private static String transactionIdOf(byte[] body) {
+        String[] fields = new String(body, 0, indexOfField(body, 2)).split(":", 2);
+        boolean request = !fields[0].isEmpty() && !Character.isDigit(fields[0].charAt(0)); // IDs start with their time
+        return request && fields.length > 1 ? fields[1] : fields[0];
+    }
+
     /**
      * Handles the 'prepare' phase of a transaction by deciding whether to lock the required
-     * resources and asking the user for confirmation to proceed.
+     * resources and asking the user for confirmation to proceed. Only the header of the message
+     * is parsed up front; the image is decoded once the cheap checks have passed and the user
+     * is actually going to be asked.
      *
      * @param msg The 'prepare' message containing details about the transaction and the resources involved.
      */
     private void handlePrepare(ProjectLib.Message msg) {
-        String[] parts = new String(msg.body).split(":", 4);
+        int headerEnd = indexOfField(msg.body, 3);
+        String[] parts = new String(msg.body, 0, headerEnd).split(":", 3);
         String transactionId = parts[1];
         String files[] = parts[2].split(",");
-        byte[] image = Base64.getDecoder().decode(parts[3]);
-        boolean userDecision = false;
-        String res = null;
-        Log WAL = getWAL(transactionId);
 
-        /* get response from the log */
-        res = rm.getPrepareReply(WAL.getLogFile(), transactionId);
+        prepareLocal(transactionId, new String[][] {files}, msg.body, new int[] {headerEnd + 1, msg.body.length + 1},
+                res -> PL.sendMessage(Tracer.message(msg.addr, res.getBytes(), transactionId)));
+    }
+
+    /**
+     * Handles the 'prepare' of a batch transaction, which lists this node's files for each
+     * composite it contributes to, separated by ';', followed by the images of those composites,
+     * also separated by ';'. The node votes once for the whole batch.
+     *
+     * @param msg The 'bprepare' message containing the file groups and their images.
+     */
+    private void handleBatchPrepare(ProjectLib.Message msg) {
+        int headerEnd = indexOfField(msg.body, 3);
+        String[] parts = new String(msg.body, 0, headerEnd).split(":", 3);
+        String transactionId = parts[1];
+        String[] groupParts = parts[2].split(";");
+        String[][] groups = new String[groupParts.length][];
+        for (int i = 0; i < groupParts.length; i++) {
+            groups[i] = groupParts[i].split(",");
+        }
+
+        int[] bounds = new int[groups.length + 1];
+        bounds[0] = headerEnd + 1;
+        for (int i = 1, position = bounds[0]; i < groups.length; i++) {
+            while (position < msg.body.length && msg.body[position] != ';') {
+                position++;
+            }
+            bounds[i] = ++position; // past the body if images are missing, which makes their decode fail
+        }
+        bounds[groups.length] = msg.body.length + 1;
+
+        prepareLocal(transactionId, groups, msg.body, bounds,
+                res -> PL.sendMessage(Tracer.message(msg.addr, res.getBytes(), transactionId)));
+    }
+
+    /**
+     * Votes on this node's part of a transaction. The vote is answered from the cache or the log
+     * if it was already given; otherwise the files are checked and locked, the user is asked once
+     * per composite, and the vote is logged and flushed before it is passed to the reply. Under
+     * the wait lock policy a prepare that conflicts with other transactions may be queued, in
+     * which case the reply is called later from another thread.
+     *
+     * @param transactionId The transaction ID.
+     * @param groups        This node's files in the transaction, one group per composite.
+     * @param body          The message body holding the encoded images.
+     * @param bounds        The start of each group's encoded image, followed by one past the end
+     *                      of the last image plus one; images are separated by a single byte.
+     * @param reply         Receives the vote, either "id:Yes" or "id:No".
+     */
+    private void prepareLocal(String transactionId, String[][] groups, byte[] body, int[] bounds, Consumer<String> reply) {
+        String res = votes.get(transactionId);
+
+        /* get response from the cache, then from the journal */
         if (res != null) {
-            PL.sendMessage(new ProjectLib.Message(msg.addr, res.getBytes()));
+            reply.accept(res);
             return;
         }
+        res = journal.find(transactionId, "Yes", "No");
+        if (res != null) {
+            votes.put(transactionId, res);
+            reply.accept(res);
+            return;
+        }
+        if (!inProgress.add(transactionId)) {
+            return; // already being voted on, or queued behind a conflicting lock
+        }
 
-        synchronized (lockedFiles) {
-            if (checkFilesExists(files) && !checkFilesOccupied(files)) {
-                try {
-                    lockResources(files);
-                    userDecision = PL.askUser(image, files);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.out.println(myId + ": Error while locking resources");
+        tryPrepare(new Waiter(transactionId, groups, body, bounds, reply), true);
+    }
+
+    /**
+     * Tries to lock a prepare's files and ask the user. If the files are taken and the wait
+     * policy is on, wait-die decides by age: a transaction older than every conflicting holder
+     * and waiter queues up, a younger one votes No at once. Since only older transactions ever
+     * wait for younger ones, no cycle of waits can form.
+     *
+     * @param w     The prepare.
+     * @param fresh Whether this is the first attempt; a woken waiter ignores the queues it was
+     *              released from and goes back to their front if it must wait again.
+     */
+    private void tryPrepare(Waiter w, boolean fresh) {
+        boolean userDecision = false;
+
+        synchronized (locks) {
+            if (checkFilesExists(w.files)) {
+                Set<String> conflicts = getConflicts(w.transactionId, w.files, fresh);
+                if (conflicts.isEmpty()) {
+                    try {
+                        lockResources(w.transactionId, w.files);
+                        userDecision = true;
+                        for (int i = 0; i < w.groups.length && userDecision; i++) {
+                            byte[] image = PayloadCodec.decode(w.body, w.bounds[i], w.bounds[i + 1] - 1);
+                            Tracer.Span prompt = Tracer.start("user prompt", w.transactionId);
+                            userDecision = PL.askUser(image, w.groups[i]);
+                            prompt.end();
+                        }
+                        userDecision = userDecision && confirmFilesExist(w.transactionId, w.files);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.out.println(myId + ": Error while locking resources");
+                    } catch (IllegalArgumentException e) {
+                        userDecision = false; // a group may already have said yes
+                        System.out.println(myId + ": Malformed image in prepare " + w.transactionId + ": " + e.getMessage());
+                    }
+                } else if (WAIT_POLICY && isOlderThanAll(w.transactionId, conflicts)
+                        && System.currentTimeMillis() < w.deadline) {
+                    enqueue(w, fresh);
+                    return;
                 }
             }
-    
+
             if (!userDecision) {
-                try {
-                    releaseResources(files);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.out.println(myId + ": Error while releasing resources");
+                release(w.transactionId, w.files);
+            }
+        }
+
+        finishVote(w, userDecision);
+    }
+
+    /**
+     * Journals a vote and, once the group commit has made it durable, caches it and hands it to
+     * the prepare's reply. A Yes is journaled with the prepare's files, which stay locked until
+     * the decision arrives, even across a restart.
+     *
+     * @param w            The prepare.
+     * @param userDecision Whether the node votes Yes.
+     */
+    private void finishVote(Waiter w, boolean userDecision) {
+        String res = userDecision ? w.transactionId + ":Yes" : w.transactionId + ":No";
+        waiting.remove(w.transactionId);
+        journal.append(userDecision ? res + ":" + String.join(",", w.files) : res).thenRun(() -> {
+            votes.put(w.transactionId, res);
+            inProgress.remove(w.transactionId);
+            if (userDecision) {
+                startInquiry(w.transactionId, w.files, INQUIRY_INTERVAL);
+            }
+            w.reply.accept(res);
+        });
+    }
+
+    /**
+     * Collects the transactions a prepare would conflict with: the holders of its files, and on a
+     * first attempt also the prepares already queued for them, so that a newcomer cannot overtake
+     * the queue.
+     *
+     * @param transactionId The transaction ID of the prepare.
+     * @param files         The files of the prepare.
+     * @param withWaiters   Whether to include queued prepares.
+     * @return The conflicting transaction IDs.
+     */
+    private Set<String> getConflicts(String transactionId, String[] files, boolean withWaiters) {
+        Set<String> conflicts = new HashSet<>();
+        for (String file : files) {
+            for (String owner : locks.getOwners(file)) {
+                if (!owner.equals(transactionId)) {
+                    conflicts.add(owner);
+                }
+            }
+            ArrayDeque<Waiter> queue = waitQueues.get(file);
+            if (withWaiters && queue != null) {
+                for (Waiter waiter : queue) {
+                    conflicts.add(waiter.transactionId);
+                }
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * Compares transaction ages. Transaction IDs start with their start time, so the older
+     * transaction has the smaller ID.
+     *
+     * @param transactionId The transaction that wants to wait.
+     * @param others        The transactions it would wait for.
+     * @return true if the transaction is older than all the others, otherwise false.
+     */
+    private static boolean isOlderThanAll(String transactionId, Set<String> others) {
+        for (String other : others) {
+            if (transactionId.compareTo(other) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues a prepare on each of its files that is taken or has a queue, and arms its deadline
+     * on the first attempt. A prepare still queued at its deadline votes No.
+     *
+     * @param w     The prepare.
+     * @param fresh Whether this is the first attempt.
+     */
+    private void enqueue(Waiter w, boolean fresh) {
+        for (String file : w.files) {
+            if (locks.isLocked(file) || waitQueues.containsKey(file)) {
+                ArrayDeque<Waiter> queue = waitQueues.computeIfAbsent(file, f -> new ArrayDeque<>());
+                if (fresh) {
+                    queue.addLast(w);
+                } else {
+                    queue.addFirst(w);
                 }
             }
         }
+        waiting.put(w.transactionId, w);
+        if (fresh) {
+            System.out.println(myId + ": " + w.transactionId + " waits for a conflicting lock");
+            timer.schedule(() -> {
+                boolean expired;
+                synchronized (locks) {
+                    expired = dequeue(w);
+                }
+                if (expired) {
+                    finishVote(w, false);
+                }
+            }, w.deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
 
-        res = userDecision ? transactionId + ":Yes" : transactionId + ":No";
-        WAL.write2Log(res);
-        PL.fsync();
-        PL.sendMessage(new ProjectLib.Message(msg.addr, res.getBytes()));
+    /**
+     * Removes a prepare from every queue it is in.
+     *
+     * @param w The prepare.
+     * @return true if the prepare was queued, otherwise false.
+     */
+    private boolean dequeue(Waiter w) {
+        boolean queued = false;
+        for (String file : w.files) {
+            ArrayDeque<Waiter> queue = waitQueues.get(file);
+            if (queue != null && queue.remove(w)) {
+                queued = true;
+                if (queue.isEmpty()) {
+                    waitQueues.remove(file);
+                }
+            }
+        }
+        return queued;
     }
 
     /**
@@ -115,46 +397,443 @@ public class UserNode implements ProjectLib.MessageHandling {
         String transactionId = parts[1];
         String decision = parts[2];
         String files[] = parts[3].split(",");
-        Log WAL = getWAL(transactionId);
 
-        /* get response from the log */
-        String res = rm.getDecision(WAL.getLogFile(), transactionId);
+        decideLocal(transactionId, decision, files, res -> PL.sendMessage(Tracer.message(msg.addr, res.getBytes(), transactionId)));
+    }
+
+    /**
+     * Applies a decision to this node's part of a transaction. A commit is journaled, and once
+     * the group commit has made it durable the ACK is handed to the reply and the files go to the
+     * {@link Reclaimer}, staying locked until they are deleted; an abort only releases the files
+     * and is acknowledged at once. A commit repeated while its ACK is still being made durable is
+     * not journaled again; its reply waits for the first one.
+     *
+     * @param transactionId The transaction ID.
+     * @param decision      Either "commit" or "abort".
+     * @param files         This node's files in the transaction.
+     * @param reply         Receives the ACK.
+     */
+    private void decideLocal(String transactionId, String decision, String[] files, Consumer<String> reply) {
+        stopInquiry(transactionId);
+
+        /* get response from the journal */
+        String res = journal.find(transactionId, "ACK");
+        if (res != null) {
+            reply.accept(res);
+            return;
+        }
+
+        synchronized (locks) {
+            Waiter queued = waiting.remove(transactionId);
+            if (queued != null) {
+                dequeue(queued); // decided without this node's vote, stop waiting
+                inProgress.remove(transactionId);
+            }
+            if (decision.equals("commit")) {
+                String ack = transactionId + ":ACK";
+                CompletableFuture<Void> durable = acking.get(transactionId);
+                if (durable == null) {
+                    if (journal.find(transactionId, "ACK") != null) {
+                        reply.accept(ack); // made durable since the check above
+                        return;
+                    }
+                    durable = journal.append(ack);
+                    acking.put(transactionId, durable);
+                    durable.thenRun(() -> {
+                        reclaim(transactionId, files);
+                        acking.remove(transactionId); // indexed by now, so repeats find it in the journal
+                    });
+                }
+                durable.thenRun(() -> reply.accept(ack));
+            } else if (decision.equals("abort")) {
+                release(transactionId, files);
+                reply.accept(transactionId + ":ACK"); // nothing to make durable, a repeat is acknowledged again
+            } else {
+                System.out.println(myId + ": Unknown decision received");
+            }
+        }
+    }
+
+    /**
+     * Handles a transaction whose sources all live on this node. With a single participant there
+     * is nothing to coordinate, so the node votes and decides in one step: the user is asked, a
+     * commit is logged with its files and flushed, the outcome is returned and the files go to the
+     * {@link Reclaimer}. An abort is logged without a flush, since a lost abort only makes a retry
+     * ask the user again. A repeated request is answered from the cache or the log.
+     *
+     * @param msg The 'onephase' message containing the files and the image.
+     */
+    private void handleOnePhase(ProjectLib.Message msg) {
+        int headerEnd = indexOfField(msg.body, 3);
+        String[] parts = new String(msg.body, 0, headerEnd).split(":", 3);
+        String transactionId = parts[1];
+        String files[] = parts[2].split(",");
+        Consumer<String> reply = res -> {
+            votes.put(transactionId, res);
+            PL.sendMessage(Tracer.message(msg.addr, res.getBytes(), transactionId));
+        };
+
+        /* get outcome from the cache, then from the journal */
+        String res = votes.get(transactionId);
+        if (res == null) {
+            res = journal.find(transactionId, "Committed", "Aborted");
+        }
         if (res != null) {
-            PL.sendMessage(new ProjectLib.Message(msg.addr, res.getBytes()));
+            reply.accept(res);
             return;
         }
+        if (!inProgress.add(transactionId)) {
+            return; // the outcome is still being made durable
+        }
+
+        boolean userDecision = false;
+        synchronized (locks) {
+            if (checkFilesExists(files) && !checkFilesOccupied(files)) {
+                try {
+                    lockResources(transactionId, files);
+                    byte[] image = PayloadCodec.decode(msg.body, headerEnd + 1);
+                    Tracer.Span prompt = Tracer.start("user prompt", transactionId);
+                    userDecision = PL.askUser(image, files);
+                    prompt.end();
+                    userDecision = userDecision && confirmFilesExist(transactionId, files);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println(myId + ": Error while locking resources");
+                } catch (IllegalArgumentException e) {
+                    System.out.println(myId + ": Malformed image in request " + transactionId + ": " + e.getMessage());
+                }
+            }
+            if (!userDecision) {
+                release(transactionId, files);
+            }
+        }
+
+        if (userDecision) {
+            String committed = transactionId + ":Committed";
+            journal.append(committed + ":" + String.join(",", files)).thenRun(() -> {
+                reclaim(transactionId, files);
+                inProgress.remove(transactionId);
+                reply.accept(committed);
+            });
+        } else {
+            String aborted = transactionId + ":Aborted"; // refused, or files missing or held by another transaction
+            journal.write(aborted);
+            inProgress.remove(transactionId);
+            reply.accept(aborted);
+        }
+    }
+
+    /**
+     * Answers the coordinator's inquiry about a one-phase transaction, in the form "query:id",
+     * without the image that a resent request would carry. The outcome comes from the cache or the
+     * journal; otherwise the node reports whether it is still deciding or never got the request,
+     * in which case the coordinator resends it.
+     *
+     * @param msg The 'query' message.
+     */
+    private void handleQuery(ProjectLib.Message msg) {
+        String transactionId = new String(msg.body).split(":", 2)[1];
+        String res = votes.get(transactionId);
+        if (res == null) {
+            res = journal.find(transactionId, "Committed", "Aborted");
+        }
+        if (res == null) {
+            res = transactionId + (inProgress.contains(transactionId) ? ":Received" : ":Unknown");
+        }
+        PL.sendMessage(Tracer.message(msg.addr, res.getBytes(), transactionId));
+    }
 
-        synchronized (lockedFiles) {
+    /**
+     * Starts asking the coordinator for the outcome of a transaction this node voted Yes on. The
+     * node holds its locks until the decision arrives, so if the decision is lost it asks every
+     * {@link #INQUIRY_INTERVAL} milliseconds instead of waiting for the coordinator to retransmit
+     * or restart.
+     *
+     * @param transactionId The transaction ID.
+     * @param files         This node's files in the transaction.
+     * @param delay         The time before the first inquiry in milliseconds.
+     */
+    private void startInquiry(String transactionId, String[] files, long delay) {
+        inDoubt.put(transactionId, files);
+        ScheduledFuture<?> inquiry = timer.scheduleWithFixedDelay(() -> {
+            if (inDoubt.containsKey(transactionId)) {
+                PL.sendMessage(Tracer.message(COORDINATOR, ("inquiry:" + transactionId).getBytes(), transactionId));
+            }
+        }, delay, INQUIRY_INTERVAL, TimeUnit.MILLISECONDS);
+        inquiries.put(transactionId, inquiry);
+    }
+
+    /**
+     * Restores the node's state from its journal at startup. Every vote and one-phase outcome is
+     * put back in the reply cache. Every committed transaction whose files may not all be deleted
+     * yet locks them again and goes back to the {@link Reclaimer}, and every transaction that
+     * voted Yes but has no ACK is in doubt: its files are locked again and the coordinator is
+     * asked for its outcome at once, instead of waiting for a retransmit. Messages are held back
+     * until this has finished.
+     */
+    private void recover() {
+        int doubtful = 0;
+        int deletes = 0;
+        for (Map.Entry<String, List<String>> entry : journal.getRecords().entrySet()) {
+            String transactionId = entry.getKey();
+            String[] files = null;
+            boolean committed = false;
+            boolean deleted = false;
+            for (String status : entry.getValue()) {
+                if (status.startsWith("Yes:") || status.startsWith("Committed:")) {
+                    files = status.substring(status.indexOf(':') + 1).split(",");
+                    votes.put(transactionId, transactionId + ":" + status.substring(0, status.indexOf(':')));
+                    committed |= status.startsWith("Committed:");
+                } else if (status.equals("No") || status.equals("Committed") || status.equals("Aborted")) {
+                    votes.put(transactionId, transactionId + ":" + status);
+                } else if (status.equals("ACK")) {
+                    committed = true;
+                } else if (status.equals("Deleted")) {
+                    deleted = true;
+                }
+            }
+            if (files == null || deleted) {
+                continue;
+            }
+
+            relock(transactionId, files);
+            if (committed) {
+                reclaim(transactionId, files);
+                deletes++;
+            } else {
+                startInquiry(transactionId, files, 0);
+                doubtful++;
+            }
+        }
+        System.out.println(myId + ": recovered " + doubtful + " in-doubt transactions and " + deletes + " pending deletes");
+        recovered.countDown();
+    }
+
+    /**
+     * Locks a recovered transaction's files again. A file another recovered transaction already
+     * holds is shared with it rather than taken: an abort leaves no record, so the journal cannot
+     * tell which of the two voted Yes last, and under presumed abort holding the file until both
+     * are resolved is always safe.
+     *
+     * @param transactionId The transaction ID.
+     * @param files         The transaction's files on this node.
+     */
+    private void relock(String transactionId, String[] files) {
+        synchronized (locks) {
             try {
-                if (decision.equals("commit")) {
-                    res = transactionId + ":ACK";
-                    WAL.write2Log(res);
-                    PL.fsync();
-                    deleteFiles(files);
-                    releaseResources(files);
-                    PL.sendMessage(new ProjectLib.Message(msg.addr, res.getBytes()));
-                } else if (decision.equals("abort")) {
-                    releaseResources(files);
-                } else {
-                    System.out.println(myId + ": Unknown decision received");
+                for (String file : files) {
+                    locks.share(transactionId, file);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
-                System.out.println(myId + ": Error while releasing resources");
+                System.out.println(myId + ": Error while relocking resources");
+            }
+        }
+    }
+
+    /**
+     * Hands a committed transaction's files to the {@link Reclaimer}. The files stay locked until
+     * they are deleted; then the deletion is journaled without a flush, since a lost record only
+     * makes the next recovery delete them again.
+     *
+     * @param transactionId The transaction ID.
+     * @param files         The transaction's files on this node.
+     */
+    private void reclaim(String transactionId, String[] files) {
+        reclaiming.add(transactionId);
+        Tracer.Span delete = Tracer.startAsync("delete", transactionId);
+        reclaimer.delete(files).thenRun(() -> {
+            delete.end();
+            for (String file : files) {
+                inventory.remove(file);
+            }
+            journal.write(transactionId + ":Deleted");
+            synchronized (locks) {
+                release(transactionId, files);
+            }
+            reclaiming.remove(transactionId);
+        });
+    }
+
+    /**
+     * Starts sending heartbeats to the coordinator, which uses them to notice a crashed node
+     * long before a prepare times out.
+     */
+    private void startHeartbeat() {
+        timer.scheduleAtFixedRate(() -> PL.sendMessage(Tracer.message(COORDINATOR, "heartbeat".getBytes(), null)),
+                0, FailureDetector.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the inquiry of a transaction once its decision is known.
+     *
+     * @param transactionId The transaction ID.
+     */
+    private void stopInquiry(String transactionId) {
+        inDoubt.remove(transactionId);
+        ScheduledFuture<?> inquiry = inquiries.remove(transactionId);
+        if (inquiry != null) {
+            inquiry.cancel(false);
+        }
+    }
+
+    /**
+     * Handles the coordinator's answer to an inquiry by applying the decision as if it had
+     * arrived normally. A commit is acknowledged to the coordinator, or recorded in the relay
+     * group when this node relays the transaction, so the coordinator only hears from the relay
+     * once the whole subtree has committed. A child of a subtree is told its relay in the answer
+     * and acknowledges to the relay instead, since the coordinator only counts the relay's ACK.
+     *
+     * @param msg The 'status' message containing the transaction ID, its decision and, for a
+     *            child of a subtree, its relay.
+     */
+    private void handleStatus(ProjectLib.Message msg) {
+        String[] parts = new String(msg.body).split(":", 4);
+        String transactionId = parts[1];
+        String ackTo = parts.length > 3 ? parts[3] : msg.addr;
+        String[] files = inDoubt.get(transactionId);
+        if (files == null) {
+            return; // already decided
+        }
+
+        RelayGroup group = relayGroups.get(transactionId);
+        decideLocal(transactionId, parts[2], files, res -> {
+            if (group != null) {
+                sendToCoordinator(group, group.recordAck(myId));
+            } else {
+                PL.sendMessage(Tracer.message(ackTo, res.getBytes(), transactionId));
             }
+        });
+    }
+
+    /**
+     * Handles a prepare sent to this node as the relay of a subtree. The prepare is forwarded to
+     * the children first so they can ask their users while this node asks its own, and the
+     * combined vote goes to the coordinator once every member has voted Yes, any member has voted
+     * No, or the relay deadline passes.
+     *
+     * @param msg The 'rprepare' message containing the subtree and the image.
+     */
+    private void handleRelayPrepare(ProjectLib.Message msg) {
+        int headerEnd = indexOfField(msg.body, 3);
+        String[] parts = new String(msg.body, 0, headerEnd).split(":", 3);
+        String transactionId = parts[1];
+        RelayGroup group = getRelayGroup(transactionId, msg.addr, parts[2]);
+
+        int payloadLength = msg.body.length - headerEnd - 1;
+        for (String child : group.getChildren(myId)) {
+            byte[] header = ("prepare:" + transactionId + ":" + String.join(",", group.getFiles(child)) + ":").getBytes();
+            byte[] body = new byte[header.length + payloadLength];
+            System.arraycopy(header, 0, body, 0, header.length);
+            System.arraycopy(msg.body, headerEnd + 1, body, header.length, payloadLength);
+            PL.sendMessage(Tracer.message(child, body, transactionId));
+        }
+        timer.schedule(() -> sendToCoordinator(group, group.timeoutVote()), RELAY_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        prepareLocal(transactionId, new String[][] {group.getFiles(myId)}, msg.body, new int[] {headerEnd + 1, msg.body.length + 1},
+                res -> sendToCoordinator(group, group.recordVote(myId, res.endsWith(":Yes"))));
+    }
+
+    /**
+     * Handles a decision sent to this node as the relay of a subtree. The decision is forwarded to
+     * every child that has not acknowledged it yet, so the coordinator's retransmits also drive
+     * retransmits inside the subtree.
+     *
+     * @param msg The 'rdecision' message containing the decision and the subtree.
+     */
+    private void handleRelayDecision(ProjectLib.Message msg) {
+        String[] parts = new String(msg.body).split(":", 4);
+        String transactionId = parts[1];
+        String decision = parts[2];
+        RelayGroup group = getRelayGroup(transactionId, msg.addr, parts[3]);
+
+        for (String child : group.getUnackedChildren(myId)) {
+            String msg2Send = "decision:" + transactionId + ":" + decision + ":" + String.join(",", group.getFiles(child));
+            PL.sendMessage(Tracer.message(child, msg2Send.getBytes(), transactionId));
         }
+
+        decideLocal(transactionId, decision, group.getFiles(myId), res -> sendToCoordinator(group, group.recordAck(myId)));
     }
 
     /**
-     * Checks if the given files exist.
+     * Handles a vote or ACK from a child of a subtree this node relays.
+     *
+     * @param msg The reply, in the form "id:Yes", "id:No" or "id:ACK".
+     */
+    private void handleRelayReply(ProjectLib.Message msg) {
+        String[] parts = new String(msg.body).split(":", 2);
+        RelayGroup group = relayGroups.get(parts[0]);
+        if (group == null) {
+            System.out.println(myId + ": drop reply for unknown relay group " + parts[0]);
+            return;
+        }
+
+        if (parts[1].equals("Yes") || parts[1].equals("No")) {
+            sendToCoordinator(group, group.recordVote(msg.addr, parts[1].equals("Yes")));
+        } else if (parts[1].equals("ACK")) {
+            sendToCoordinator(group, group.recordAck(msg.addr));
+        }
+    }
+
+    /**
+     * Retrieves the relay group of a transaction, creating it from the subtree description if this
+     * node has not seen it, for example after a restart.
+     *
+     * @param transactionId The transaction ID.
+     * @param coordinator   The address of the coordinator.
+     * @param subtree       The subtree description.
+     * @return The relay group.
+     */
+    private RelayGroup getRelayGroup(String transactionId, String coordinator, String subtree) {
+        return relayGroups.computeIfAbsent(transactionId, id -> new RelayGroup(id, coordinator, subtree));
+    }
+
+    /**
+     * Sends a combined reply of a relay group to the coordinator. A group is forgotten once its
+     * combined ACK is sent; a retransmitted decision rebuilds it and is answered from the logs.
+     *
+     * @param group The relay group.
+     * @param res   The combined reply, or null if there is nothing to send yet.
+     */
+    private void sendToCoordinator(RelayGroup group, String res) {
+        if (res == null) {
+            return;
+        }
+        String transactionId = res.split(":", 2)[0];
+        if (res.endsWith(":ACK")) {
+            relayGroups.remove(transactionId, group);
+        }
+        PL.sendMessage(Tracer.message(group.getCoordinator(), res.getBytes(), transactionId));
+    }
+
+    /**
+     * Checks if the given files exist, through the node's {@link Inventory}.
      * 
      * @param files The list of file paths to check.
      * @return true if all files exist, false otherwise.
      */
     private boolean checkFilesExists(String files[]) {
         for (String file : files) {
-            File f = new File(file);
-            if (!f.exists() || f.isDirectory()) {
+            if (!inventory.exists(file)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Confirms with a stat that the given files still exist before the node votes Yes on them,
+     * since the {@link Inventory} may not have heard of a deletion yet. The files are locked by
+     * then, so the node itself cannot delete them before the decision.
+     *
+     * @param transactionId The transaction ID, for the log.
+     * @param files         The list of file paths to check.
+     * @return true if all files exist, false otherwise.
+     */
+    private boolean confirmFilesExist(String transactionId, String files[]) {
+        for (String file : files) {
+            if (!inventory.verify(file)) {
+                System.out.println(myId + ": Source " + file + " of " + transactionId + " is gone, voting No");
                 return false;
             }
         }
@@ -169,7 +848,7 @@ public class UserNode implements ProjectLib.MessageHandling {
      */
     private boolean checkFilesOccupied(String files[]) {
         for (String file : files) {
-            if (lockedFiles.containsKey(file)) {
+            if (locks.isLocked(file)) {
                 return true;
             }
         }
@@ -177,65 +856,164 @@ public class UserNode implements ProjectLib.MessageHandling {
     }
 
     /**
-     * Deletes the given files.
+     * Locks the given files on behalf of a transaction.
      * 
-     * @param files The list of file paths to delete.
+     * @param transactionId The transaction taking the locks.
+     * @param files         The list of file paths to lock.
+     * @throws IOException If an I/O error occurs while locking the files.
      */
-    private void deleteFiles(String files[]) {
+    private void lockResources(String transactionId, String files[]) throws IOException {
         for (String file : files) {
-            File f = new File(file);
-            f.delete();
+            locks.lock(transactionId, file);
         }
     }
 
     /**
-     * Locks the given files.
+     * Releases the locks a transaction holds on the given files, leaving locks held by other
+     * transactions alone, and wakes the first prepare queued on each released file. Woken
+     * prepares retry on a thread of their own, since asking the user blocks.
      * 
-     * @param files The list of file paths to lock.
-     * @throws IOException If an I/O error occurs while locking the files.
+     * @param transactionId The transaction releasing the locks.
+     * @param files         The list of file paths to release.
+     * @throws IOException If an I/O error occurs while releasing the locks.
      */
-    private void lockResources(String files[]) throws IOException {
+    private void releaseResources(String transactionId, String files[]) throws IOException {
         for (String file : files) {
-            RandomAccessFile raFile = new RandomAccessFile(file, "rw");
-            FileChannel fileChannel = raFile.getChannel();
-            FileLock lock = fileChannel.lock();
-            lockedFiles.put(file, lock);
+            if (locks.unlock(transactionId, file)) {
+                ArrayDeque<Waiter> queue = waitQueues.get(file);
+                if (queue != null) {
+                    Waiter next = queue.peekFirst();
+                    dequeue(next);
+                    woken.execute(() -> tryPrepare(next, false));
+                }
+            }
         }
     }
 
     /**
-     * Releases the locks on the given files.
-     * 
-     * @param files The list of file paths to release.
-     * @throws IOException If an I/O error occurs while releasing the locks.
+     * Releases a transaction's locks, reporting rather than propagating I/O errors.
+     *
+     * @param transactionId The transaction releasing the locks.
+     * @param files         The list of file paths to release.
      */
-    private void releaseResources(String files[]) throws IOException {
-        for (String file : files) {
-            if (lockedFiles.containsKey(file)) {
-                lockedFiles.get(file).release();
-                lockedFiles.remove(file);
+    private void release(String transactionId, String files[]) {
+        try {
+            releaseResources(transactionId, files);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(myId + ": Error while releasing resources");
+        }
+    }
+
+    /**
+     * Checks if a message body starts with the given ASCII prefix without decoding the whole body.
+     *
+     * @param body   The message body.
+     * @param prefix The prefix to look for.
+     * @return true if the body starts with the prefix, otherwise false.
+     */
+    private static boolean startsWith(byte[] body, String prefix) {
+        if (body.length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (body[i] != prefix.charAt(i)) {
+                return false;
             }
         }
+        return true;
     }
 
     /**
-     * Retrieves the Write-Ahead Log (WAL) for the given transaction.
-     * 
-     * @param transactionId The unique identifier for the transaction.
-     * @return The WAL for the transaction.
+     * Finds the position of the n-th ':' separator in a message body.
+     *
+     * @param body The message body.
+     * @param n    The separator to look for, counting from 1.
+     * @return The index of the separator, or the body length if there are fewer separators.
      */
-    private Log getWAL(String transactionId) {
-        if (!WALs.containsKey(transactionId)) {
-            WALs.put(transactionId, new Log(transactionId));
+    private static int indexOfField(byte[] body, int n) {
+        for (int i = 0; i < body.length; i++) {
+            if (body[i] == ':' && --n == 0) {
+                return i;
+            }
         }
-        return WALs.get(transactionId);
+        return body.length;
     }
-    
+
+    /**
+     * Handles the coordinator's forget watermark. Every transaction below it is finished and the
+     * coordinator will never send anything about it again, so its journal records, cached
+     * replies, relay group, inquiry, queued prepare and any lock it still holds are dropped. The
+     * journal records and locks of transactions whose files are still being deleted are kept.
+     *
+     * @param msg The 'watermark' message.
+     */
+    private void handleWatermark(ProjectLib.Message msg) {
+        String watermark = new String(msg.body).split(":", 2)[1];
+        if (watermark.compareTo(forgetBelow) <= 0) {
+            return;
+        }
+        forgetBelow = watermark;
+
+        String kept = watermark;
+        for (String transactionId : reclaiming) {
+            kept = transactionId.compareTo(kept) < 0 ? transactionId : kept; // recovery must still find its deletes
+        }
+        journal.forgetBelow(kept);
+        votes.keySet().removeIf(id -> id.compareTo(watermark) < 0);
+        relayGroups.keySet().removeIf(id -> id.compareTo(watermark) < 0);
+        for (String transactionId : new ArrayList<>(inDoubt.keySet())) {
+            if (transactionId.compareTo(watermark) < 0) {
+                String[] files = inDoubt.get(transactionId);
+                stopInquiry(transactionId);
+                synchronized (locks) {
+                    release(transactionId, files);
+                }
+            }
+        }
+        synchronized (locks) {
+            for (Waiter w : new ArrayList<>(waiting.values())) {
+                if (w.transactionId.compareTo(watermark) < 0) {
+                    waiting.remove(w.transactionId);
+                    dequeue(w);
+                    inProgress.remove(w.transactionId);
+                }
+            }
+        }
+    }
+
+    /**
+     * A prepare that may have to wait for its locks, with everything needed to finish it later.
+     */
+    private static class Waiter {
+
+        private final String transactionId;
+        private final String[][] groups;
+        private final String[] files;
+        private final byte[] body;
+        private final int[] bounds;
+        private final Consumer<String> reply;
+        private final long deadline = System.currentTimeMillis() + LOCK_WAIT;
+
+        Waiter(String transactionId, String[][] groups, byte[] body, int[] bounds, Consumer<String> reply) {
+            this.transactionId = transactionId;
+            this.groups = groups;
+            this.files = Arrays.stream(groups).flatMap(Arrays::stream).toArray(String[]::new);
+            this.body = body;
+            this.bounds = bounds;
+            this.reply = reply;
+        }
+    }
+
     public static void main (String args[]) throws Exception {
         if (args.length != 2) throw new Exception("Need 2 args: <port> <id>");
         UserNode UN = new UserNode(args[1]);
+        Tracer.init(args[1]);
+        Capture.init(args[1]);
         PL = new ProjectLib(Integer.parseInt(args[0]), args[1], UN);
-        rm = new RecoveryManager(PL);
+        journal = new Journal(PL);
+        UN.recover();
+        UN.startHeartbeat();
         System.out.println("UserNode " + args[1] + " start");
     }
 }
@@ -0,0 +1,125 @@
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the coordinator's open transactions and derives the forget watermark from them.
+ * Transaction IDs start with their creation time, so every ID that sorts below the oldest open
+ * transaction belongs to a transaction that has finished and whose log is gone; no decision for
+ * it will ever be sent again. The watermark is broadcast to the nodes periodically, and a node
+ * drops every record, cached reply and lock of transactions below it.
+ *
+ * IDs are issued here so that issuing an ID and opening it happen together; a watermark can
+ * therefore never pass a transaction that has been issued but not yet started. Shards open and
+ * close transactions without sharing a lock: the open set is a concurrent sorted set, and a
+ * watermark computed while an ID is being issued is simply skipped.
+ */
+public class Watermark {
+
+    private static final int INTERVAL = Integer.getInteger("watermarkInterval", 1000); // ms
+
+    private static final ConcurrentSkipListSet<String> open = new ConcurrentSkipListSet<>();
+    private static final AtomicInteger issuing = new AtomicInteger(); // IDs issued but not yet open
+    private static final Set<String> participants = ConcurrentHashMap.newKeySet(); // every node of every transaction
+
+    /**
+     * Issues a new transaction ID and opens it.
+     *
+     * @return The new transaction ID.
+     */
+    public static String newTransactionId() {
+        issuing.incrementAndGet();
+        try {
+            String id = String.format("%013d", System.currentTimeMillis()) + "-" + UUID.randomUUID();
+            open.add(id);
+            return id;
+        } finally {
+            issuing.decrementAndGet();
+        }
+    }
+
+    /**
+     * Opens an existing transaction, such as one recovered from its log.
+     *
+     * @param id The transaction ID.
+     */
+    public static void open(String id) {
+        open.add(id);
+    }
+
+    /**
+     * Adds the participants of a transaction to the nodes the watermark is sent to, so that a
+     * node is told about the watermark even before the coordinator has heard its heartbeat.
+     *
+     * @param nodes The participants.
+     */
+    public static void involve(Collection<String> nodes) {
+        participants.addAll(nodes);
+    }
+
+    /**
+     * Closes a transaction once it is finished and forgotten, or was never started.
+     *
+     * @param id The transaction ID.
+     */
+    public static void close(String id) {
+        open.remove(id);
+    }
+
+    /**
+     * Returns the current watermark. Every transaction ID below it is finished. The time is read
+     * before anything else, so an ID stamped no later than it was already being issued then, and
+     * is either open or still counted as issuing.
+     *
+     * @return The oldest open ID, the current time if nothing is open, or null if an ID is being
+     *         issued and the watermark may not pass it.
+     */
+    public static String get() {
+        String now = String.format("%013d", System.currentTimeMillis());
+        if (issuing.get() > 0) {
+            return null;
+        }
+        String oldest = open.stream().findFirst().orElse(null);
+        return oldest == null || oldest.compareTo(now) > 0 ? now : oldest;
+    }
+
+    /**
+     * Starts broadcasting the watermark to every node that took part in a transaction or that the
+     * failure detector has heard from. A lost broadcast is simply superseded by the next one, and
+     * a send that fails is reported and skipped, so one unreachable node never stops the
+     * broadcast to the others.
+     *
+     * @param PL An instance of ProjectLib used for sending messages.
+     */
+    public static void start(ProjectLib PL) {
+        Thread broadcaster = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(INTERVAL);
+                    String watermark = get();
+                    if (watermark == null) {
+                        continue;
+                    }
+                    byte[] body = ("watermark:" + watermark).getBytes();
+                    Set<String> nodes = new HashSet<>(participants);
+                    nodes.addAll(FailureDetector.getNodes());
+                    for (String node : nodes) {
+                        try {
+                            PL.sendMessage(Tracer.message(node, body, null));
+                        } catch (RuntimeException e) {
+                            System.out.println("Error sending watermark to " + node + ": " + e);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                System.out.println("Watermark broadcast interrupted: " + e.getMessage());
+            }
+        }, "watermark");
+        broadcaster.setDaemon(true);
+        broadcaster.start();
+    }
+}